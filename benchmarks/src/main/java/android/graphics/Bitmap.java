@@ -0,0 +1,30 @@
+package android.graphics;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * JVM stand-in for the Android bitmap so the plugin sources can run in the benchmarks.
+ */
+public final class Bitmap {
+
+    private final BufferedImage image;
+
+    Bitmap(BufferedImage image) {
+        this.image = image;
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        image.getRGB(x, y, width, height, pixels, offset, stride);
+    }
+
+    public void recycle() {
+    }
+}
@@ -0,0 +1,24 @@
+package android.graphics;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.awt.image.BufferedImage;
+
+import javax.imageio.ImageIO;
+
+/**
+ * JVM stand-in for the Android bitmap decoder so the plugin sources can run in the benchmarks.
+ */
+public final class BitmapFactory {
+
+    private BitmapFactory() {}
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        try {
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(data, offset, length));
+            return image == null ? null : new Bitmap(image);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android thread priorities so the plugin sources can run in the
+ * benchmarks. Setting a priority does nothing, the JVM has no portable equivalent.
+ */
+public final class Process {
+
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+    private Process() {}
+
+    public static void setThreadPriority(int priority) {
+    }
+}
@@ -0,0 +1,25 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android clock so the plugin sources can run in the benchmarks.
+ */
+public final class SystemClock {
+
+    private SystemClock() {}
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtime() {
+        return uptimeMillis();
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
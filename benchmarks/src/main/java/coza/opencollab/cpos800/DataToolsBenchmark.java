@@ -0,0 +1,68 @@
+package coza.opencollab.cpos800;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hex encoding used for card serials and the debug dumps of serial traffic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataToolsBenchmark {
+
+    /**
+     * 7 bytes is a card serial, 1000 bytes a printer frame.
+     */
+    @Param({"7", "1000"})
+    public int size;
+
+    private byte[] data;
+
+    private char[] chars;
+
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        chars = new char[DataTools.hexLength(size, true)];
+        hex = DataTools.byteArrayToHex(data, true);
+    }
+
+    @Benchmark
+    public String byteArrayToHex() {
+        return DataTools.byteArrayToHex(data);
+    }
+
+    @Benchmark
+    public String byteArrayToHexWithSpacer() {
+        return DataTools.byteArrayToHex(data, true);
+    }
+
+    @Benchmark
+    public int byteArrayToHexIntoChars() {
+        return DataTools.byteArrayToHex(data, 0, data.length, true, chars, 0);
+    }
+
+    @Benchmark
+    public byte[] hexToByteArray() {
+        return DataTools.hexToByteArray(hex);
+    }
+}
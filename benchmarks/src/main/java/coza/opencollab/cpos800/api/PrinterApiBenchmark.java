@@ -0,0 +1,118 @@
+package coza.opencollab.cpos800.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.json.JSONArray;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import coza.opencollab.cpos800.serial.SerialManager;
+import coza.opencollab.cpos800.serial.SerialPortRegistry;
+import coza.opencollab.cpos800.serial.SimulatedTransport;
+
+/**
+ * Framing of the data sent to the printer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrinterApiBenchmark {
+
+    /**
+     * Size of the receipt in bytes, a typical slip and a long receipt.
+     */
+    @Param({"600", "8000"})
+    public int receiptSize;
+
+    private byte[] chunk;
+
+    private PrinterFrameEncoder frameEncoder;
+
+    private byte[] receipt;
+
+    private SimulatedTransport transport;
+
+    private ReceiptTemplate template;
+
+    private Map<String, String> values;
+
+    private String receiptText;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        chunk = new byte[1000];
+        Arrays.fill(chunk, (byte) 'x');
+        frameEncoder = new PrinterFrameEncoder(chunk.length);
+        // No trailing line feed, so the simulated printer does not answer with status bytes
+        receipt = new byte[receiptSize];
+        Arrays.fill(receipt, (byte) 'x');
+
+        // A slip with a header, a line per item and a footer, as a template and as plain text
+        final JSONArray layout = new JSONArray("[{text: 'OPENCOLLAB CAFE', align: 'center', bold: true, size: 2},"
+                + "{text: '1 Main Road, Cape Town', align: 'center'}, {text: 'Order {{order}}', feed: 1}]");
+        final StringBuilder text = new StringBuilder("OPENCOLLAB CAFE\n1 Main Road, Cape Town\nOrder 1042\n\n");
+        values = new HashMap<String, String>();
+        values.put("order", "1042");
+        for (int item = 0; item < 10; item++) {
+            layout.put(new JSONArray("[{columns: [{text: '{{item" + item + "}}', width: 24}, {text: '{{price" + item + "}}', width: 8, align: 'right'}]}]").get(0));
+            values.put("item" + item, "Flat white");
+            values.put("price" + item, "32.50");
+            text.append("Flat white                 32.50\n");
+        }
+        layout.put(new JSONArray("[{text: 'Thank you, come again', align: 'center', feed: 3}]").get(0));
+        text.append("Thank you, come again\n\n\n\n");
+        template = ReceiptTemplate.compile(layout);
+        receiptText = text.toString();
+
+        transport = new SimulatedTransport();
+        transport.setBaudrate(0);
+        transport.setLatency(0);
+        SerialPortRegistry.getInstance().setTransport(transport);
+        SerialManager.getInstance(SerialManager.SerialInterface.PRINTER).openSerialPort();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SerialManager.getInstance(SerialManager.SerialInterface.PRINTER).closeSerialPort();
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        return frameEncoder.encode(chunk, 0, chunk.length);
+    }
+
+    @Benchmark
+    public byte[] encodeReceiptText() throws UnsupportedEncodingException {
+        return receiptText.getBytes("GBK");
+    }
+
+    @Benchmark
+    public byte[] fillReceiptTemplate() {
+        return template.fill(values);
+    }
+
+    @Benchmark
+    public void print() throws IOException {
+        PrinterApi.getInstance().print(receipt);
+    }
+}
@@ -0,0 +1,58 @@
+package coza.opencollab.cpos800.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of images to the raster format of the printer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterEncoderBenchmark {
+
+    /**
+     * Width of the image, the width of the print head and a photo that gets scaled down.
+     */
+    @Param({"384", "1024"})
+    public int width;
+
+    private int height;
+
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        height = width / 2;
+        pixels = new int[width * height];
+        // Grey gradient with noise, so the dithering has work to do
+        final Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int grey = Math.min(255, x * 255 / width + random.nextInt(32));
+                pixels[y * width + x] = 0xff000000 | grey << 16 | grey << 8 | grey;
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return RasterEncoder.encode(pixels, width, height);
+    }
+}
@@ -0,0 +1,161 @@
+package coza.opencollab.cpos800.serial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a command through {@link SerialManager#write(byte[])} and
+ * {@link SerialManager#read(byte[], int, int)}, answered by a fake input stream
+ * as soon as the command is written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialManagerReadBenchmark {
+
+    private static final byte[] CMD_GET_ID = {0x08, 0x00, 0x01, 0x01, (byte)0xe3};
+
+    /**
+     * Interval of silence after which the response is considered complete.
+     */
+    @Param({"1", "10"})
+    public int transmitInterval;
+
+    /**
+     * Size of the response, a card serial and a printer status dump.
+     */
+    @Param({"7", "1024"})
+    public int responseSize;
+
+    private final byte[] readBuffer = new byte[2048];
+
+    private SerialManager serialManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SerialPortRegistry.getInstance().setTransport(new ReplayTransport(new byte[responseSize]));
+        serialManager = SerialManager.getInstance(SerialManager.SerialInterface.NFC);
+        serialManager.openSerialPort();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        serialManager.closeSerialPort();
+    }
+
+    @Benchmark
+    public int writeAndRead() throws IOException {
+        serialManager.write(CMD_GET_ID);
+        return serialManager.read(readBuffer, 500, transmitInterval);
+    }
+
+    /**
+     * Transport answering every write with the same response.
+     */
+    private static class ReplayTransport implements Transport {
+
+        private static final byte[] END_OF_STREAM = new byte[0];
+
+        private final byte[] response;
+
+        private final BlockingQueue<byte[]> responses = new ArrayBlockingQueue<byte[]>(16);
+
+        private final InputStream inputStream = new InputStream() {
+
+            private byte[] current = END_OF_STREAM;
+            private int position = 0;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position == current.length) {
+                    try {
+                        current = responses.take();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    position = 0;
+                    if (current == END_OF_STREAM) {
+                        return -1;
+                    }
+                }
+                final int count = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+                responses.offer(END_OF_STREAM);
+            }
+        };
+
+        private final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                responses.offer(response);
+            }
+        };
+
+        private final StreamChannel channel = new StreamChannel(inputStream, outputStream);
+
+        ReplayTransport(byte[] response) {
+            this.response = response;
+        }
+
+        @Override
+        public void setPower(SerialManager.SerialInterface serialInterface, boolean enable) {
+        }
+
+        @Override
+        public void open(SerialManager.SerialInterface serialInterface, PortProfile profile) {
+        }
+
+        @Override
+        public ReadableByteChannel getReadChannel(SerialManager.SerialInterface serialInterface) {
+            return channel;
+        }
+
+        @Override
+        public GatheringByteChannel getWriteChannel(SerialManager.SerialInterface serialInterface) {
+            return channel;
+        }
+
+        @Override
+        public void close(SerialManager.SerialInterface serialInterface) {
+        }
+    }
+}
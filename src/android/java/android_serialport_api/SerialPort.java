@@ -23,6 +23,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 
 import android.util.Log;
 
@@ -37,6 +42,18 @@ public class SerialPort {
 	private FileInputStream mFileInputStream;
 	private FileOutputStream mFileOutputStream;
 
+	/*
+	 * Do not remove or rename the fields mWakeupReadFd and mWakeupWriteFd: they are used by the
+	 * native methods, they hold the pipe that wakes up waiting threads once non-blocking io is
+	 * enabled.
+	 */
+	private int mWakeupReadFd = -1;
+	private int mWakeupWriteFd = -1;
+
+	private InputStream mInputStream;
+	private OutputStream mOutputStream;
+	private PortChannel mChannel;
+
 	public SerialPort(File device, int baudrate, int flags) throws SecurityException, IOException {
 
 		/* Check access permission */
@@ -64,20 +81,448 @@ public class SerialPort {
 		}
 		mFileInputStream = new FileInputStream(mFd);
 		mFileOutputStream = new FileOutputStream(mFd);
+		mInputStream = mFileInputStream;
+		mOutputStream = mFileOutputStream;
+	}
+
+	/**
+	 * Switch the serial port to non-blocking io. Reads and writes then wait with poll(), so
+	 * they support timeouts, and {@link #wakeup()} ends them without closing the port under
+	 * them. The streams of the serial port are replaced by streams using the non-blocking io.
+	 *
+	 * Libraries built before non-blocking io was added do not have it, the serial port then
+	 * keeps using blocking io.
+	 *
+	 * @return True if the serial port uses non-blocking io.
+	 * @throws IOException If switching to non-blocking io failed.
+	 */
+	public boolean enableNonBlocking() throws IOException {
+		if (mWakeupReadFd >= 0) {
+			return true;
+		}
+		try {
+			initNonBlocking();
+		} catch (UnsatisfiedLinkError e) {
+			Log.w(TAG, "Native library without non-blocking io, using blocking io");
+			return false;
+		}
+		mInputStream = new PollingInputStream();
+		mOutputStream = new PollingOutputStream();
+		return true;
+	}
+
+	/**
+	 * Change the termios options the serial port was opened with in raw mode.
+	 *
+	 * VMIN is the number of bytes a read waits for and VTIME the time in tenths of a second
+	 * a read waits after the last byte, poll() follows VMIN as long as VTIME is 0. Raw mode
+	 * opens the serial port with a VMIN of 1 and a VTIME of 0.
+	 *
+	 * Libraries built before the options were configurable do not have it, the serial port
+	 * then keeps the options of raw mode.
+	 *
+	 * @param vmin Minimum number of bytes of a read, from 0 to 255.
+	 * @param vtime Time in tenths of a second a read waits for more bytes, from 0 to 255.
+	 * @param flowControl True to enable the RTS/CTS hardware flow control.
+	 * @return True if the options were applied.
+	 * @throws IOException If applying the options failed.
+	 */
+	public boolean configure(int vmin, int vtime, boolean flowControl) throws IOException {
+		try {
+			configureTermios(vmin, vtime, flowControl);
+		} catch (UnsatisfiedLinkError e) {
+			Log.w(TAG, "Native library without termios options, keeping raw mode");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read from the serial port into a direct buffer, at the position of the buffer. Only
+	 * available once non-blocking io is enabled.
+	 *
+	 * @param buffer Direct buffer receiving the bytes, its position is moved past them.
+	 * @param timeout Time in milliseconds to wait for bytes to arrive, -1 to wait until they do.
+	 * @return Number of bytes read, 0 if the timeout expired and -1 when the serial port got
+	 *         woken up or closed.
+	 * @throws IOException If reading failed.
+	 */
+	public int read(ByteBuffer buffer, int timeout) throws IOException {
+		final int count = readDirect(buffer, buffer.position(), buffer.remaining(), timeout);
+		if (count > 0) {
+			buffer.position(buffer.position() + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Write a direct buffer to the serial port, from the position of the buffer. Only
+	 * available once non-blocking io is enabled.
+	 *
+	 * @param buffer Direct buffer holding the bytes, its position is moved past the written bytes.
+	 * @param timeout Time in milliseconds to wait for the port to accept all the bytes, -1 to
+	 *                wait until it does.
+	 * @return Number of bytes written, less than remaining if the timeout expired or the serial
+	 *         port got woken up.
+	 * @throws IOException If writing failed.
+	 */
+	public int write(ByteBuffer buffer, int timeout) throws IOException {
+		final int count = writeDirect(buffer, buffer.position(), buffer.remaining(), timeout);
+		buffer.position(buffer.position() + count);
+		return count;
 	}
 
 	// Getters and setters
 	public InputStream getInputStream() {
-		return mFileInputStream;
+		return mInputStream;
 	}
 
 	public OutputStream getOutputStream() {
-		return mFileOutputStream;
+		return mOutputStream;
+	}
+
+	/**
+	 * @return Channel reading and writing the serial port with byte buffers.
+	 */
+	public synchronized PortChannel getChannel() {
+		if (mChannel == null) {
+			mChannel = new PortChannel();
+		}
+		return mChannel;
 	}
 
 	// JNI
 	private native static FileDescriptor open(String path, int baudrate, int flags);
 	public native void close();
+	private native void initNonBlocking() throws IOException;
+	private native void configureTermios(int vmin, int vtime, boolean flowControl) throws IOException;
+	private native int readDirect(ByteBuffer buffer, int position, int length, int timeout) throws IOException;
+	private native int writeDirect(ByteBuffer buffer, int position, int length, int timeout) throws IOException;
+	private native int writeGather(ByteBuffer[] buffers, int[] positions, int[] lengths, int count, int timeout) throws IOException;
+
+	private native void signalWakeup();
+
+	/**
+	 * Wake up the threads waiting to read or write, for good: once woken up reads return the
+	 * end of the stream right away. Used to stop the reading thread before closing the port.
+	 * Does nothing when non-blocking io is not enabled.
+	 */
+	public void wakeup() {
+		if (mWakeupWriteFd >= 0) {
+			signalWakeup();
+		}
+	}
+
+	/**
+	 * Channel over the serial port. With non-blocking io, direct buffers are read and written
+	 * by the native library straight from their memory and a gathering write goes out in a
+	 * single writev(). Other buffers, and serial ports using blocking io, are copied through
+	 * a buffer of the channel.
+	 *
+	 * Unlike the channels of file streams, interrupting a thread using the channel does not
+	 * close the serial port. Closing the channel only wakes up the threads using it, the
+	 * serial port itself is closed by {@link SerialPort#close()}.
+	 */
+	public class PortChannel implements ByteChannel, GatheringByteChannel {
+
+		/**
+		 * Maximum number of buffers the native library writes at once.
+		 */
+		private static final int MAX_GATHER = 16;
+
+		private final Object mReadLock = new Object();
+		private final Object mWriteLock = new Object();
+		private final byte[] mReadArray = new byte[1024];
+		private final byte[] mWriteArray = new byte[1024];
+		private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+		private final int[] mGatherPositions = new int[MAX_GATHER];
+		private final int[] mGatherLengths = new int[MAX_GATHER];
+		private ByteBuffer mReadDirect;
+		private ByteBuffer mWriteDirect;
+		private ByteBuffer mGatherStaging;
+		private volatile boolean mOpen = true;
+
+		private PortChannel() {
+		}
+
+		/**
+		 * Read bytes that arrived on the serial port, blocks until at least one byte arrived.
+		 * @param dst Buffer receiving the bytes.
+		 * @return Number of bytes read, -1 when the serial port got woken up or closed.
+		 */
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			ensureOpen();
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			synchronized (mReadLock) {
+				if (mWakeupReadFd < 0) {
+					return readBlocking(dst);
+				}
+				if (dst.isDirect()) {
+					return readPolling(dst);
+				}
+				if (mReadDirect == null) {
+					mReadDirect = ByteBuffer.allocateDirect(mReadArray.length);
+				}
+				mReadDirect.clear();
+				mReadDirect.limit(Math.min(dst.remaining(), mReadDirect.capacity()));
+				final int count = readPolling(mReadDirect);
+				if (count > 0) {
+					mReadDirect.flip();
+					dst.put(mReadDirect);
+				}
+				return count;
+			}
+		}
+
+		private int readPolling(ByteBuffer dst) throws IOException {
+			int count;
+			do {
+				count = SerialPort.this.read(dst, -1);
+			} while (count == 0);
+			return count;
+		}
+
+		private int readBlocking(ByteBuffer dst) throws IOException {
+			if (dst.hasArray()) {
+				final int count = mFileInputStream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+				if (count > 0) {
+					dst.position(dst.position() + count);
+				}
+				return count;
+			}
+			final int count = mFileInputStream.read(mReadArray, 0, Math.min(dst.remaining(), mReadArray.length));
+			if (count > 0) {
+				dst.put(mReadArray, 0, count);
+			}
+			return count;
+		}
+
+		/**
+		 * Write all the remaining bytes of a buffer, blocks until the serial port accepted them.
+		 * @param src Buffer holding the bytes.
+		 * @return Number of bytes written.
+		 * @throws AsynchronousCloseException If the serial port got woken up or closed while writing.
+		 */
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			ensureOpen();
+			final int length = src.remaining();
+			synchronized (mWriteLock) {
+				if (mWakeupReadFd < 0) {
+					writeBlocking(src);
+				}
+				else if (src.isDirect()) {
+					writePolling(src);
+				}
+				else {
+					if (mWriteDirect == null) {
+						mWriteDirect = ByteBuffer.allocateDirect(mWriteArray.length);
+					}
+					while (src.hasRemaining()) {
+						final ByteBuffer chunk = src.duplicate();
+						chunk.limit(chunk.position() + Math.min(chunk.remaining(), mWriteDirect.capacity()));
+						mWriteDirect.clear();
+						mWriteDirect.put(chunk);
+						mWriteDirect.flip();
+						writePolling(mWriteDirect);
+						src.position(chunk.position());
+					}
+				}
+			}
+			return length;
+		}
+
+		private void writePolling(ByteBuffer src) throws IOException {
+			SerialPort.this.write(src, -1);
+			if (src.hasRemaining()) {
+				throw new AsynchronousCloseException();
+			}
+		}
+
+		private void writeBlocking(ByteBuffer src) throws IOException {
+			if (src.hasArray()) {
+				mFileOutputStream.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+				return;
+			}
+			while (src.hasRemaining()) {
+				final int chunk = Math.min(src.remaining(), mWriteArray.length);
+				src.get(mWriteArray, 0, chunk);
+				mFileOutputStream.write(mWriteArray, 0, chunk);
+			}
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+
+		/**
+		 * Write all the remaining bytes of a sequence of buffers. With non-blocking io the
+		 * buffers are handed to the serial port together, so a frame made of a header, its
+		 * data and a trailer goes out in one write without being assembled first. Direct
+		 * buffers are written from their own memory, small buffers that are not direct are
+		 * copied once into a buffer of the channel.
+		 * @return Number of bytes written.
+		 * @throws AsynchronousCloseException If the serial port got woken up or closed while writing.
+		 */
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			ensureOpen();
+			long written = 0;
+			synchronized (mWriteLock) {
+				int index = offset;
+				final int end = offset + length;
+				while (index < end) {
+					if (mWakeupReadFd < 0) {
+						written += write(srcs[index++]);
+						continue;
+					}
+					if (mGatherStaging == null) {
+						mGatherStaging = ByteBuffer.allocateDirect(4096);
+					}
+					mGatherStaging.clear();
+					int count = 0;
+					int total = 0;
+					while (index + count < end && count < MAX_GATHER) {
+						final ByteBuffer src = srcs[index + count];
+						if (src.isDirect()) {
+							mGather[count] = src;
+							mGatherPositions[count] = src.position();
+						}
+						else if (src.remaining() <= mGatherStaging.remaining()) {
+							mGather[count] = mGatherStaging;
+							mGatherPositions[count] = mGatherStaging.position();
+							mGatherStaging.put(src.duplicate());
+						}
+						else {
+							break;
+						}
+						mGatherLengths[count] = src.remaining();
+						total += mGatherLengths[count];
+						count++;
+					}
+					// A buffer too large to stage goes out on its own
+					if (count == 0) {
+						written += write(srcs[index++]);
+						continue;
+					}
+					final int gathered = writeGather(mGather, mGatherPositions, mGatherLengths, count, -1);
+					// Move the buffers past the written bytes
+					int left = gathered;
+					for (int i = 0; i < count; i++) {
+						final ByteBuffer src = srcs[index + i];
+						final int part = Math.min(left, mGatherLengths[i]);
+						src.position(src.position() + part);
+						left -= part;
+						mGather[i] = null;
+					}
+					written += gathered;
+					if (gathered < total) {
+						throw new AsynchronousCloseException();
+					}
+					index += count;
+				}
+			}
+			return written;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return mOpen;
+		}
+
+		/**
+		 * Close the channel and wake up the threads using it, the serial port stays open.
+		 */
+		@Override
+		public void close() {
+			mOpen = false;
+			wakeup();
+		}
+
+		private void ensureOpen() throws ClosedChannelException {
+			if (!mOpen) {
+				throw new ClosedChannelException();
+			}
+		}
+	}
+
+	/**
+	 * Stream reading with non-blocking io, closing it wakes up a blocked read which then
+	 * returns the end of the stream.
+	 */
+	private class PollingInputStream extends InputStream {
+
+		private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(1024);
+
+		@Override
+		public int read() throws IOException {
+			final byte[] single = new byte[1];
+			final int count = read(single, 0, 1);
+			return count < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int count;
+			synchronized (mBuffer) {
+				mBuffer.clear();
+				mBuffer.limit(Math.min(len, mBuffer.capacity()));
+				// Block until bytes arrive, like a stream does
+				do {
+					count = SerialPort.this.read(mBuffer, -1);
+				} while (count == 0);
+				if (count > 0) {
+					mBuffer.flip();
+					mBuffer.get(b, off, count);
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public void close() {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Stream writing with non-blocking io.
+	 */
+	private class PollingOutputStream extends OutputStream {
+
+		private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(1024);
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (mBuffer) {
+				while (len > 0) {
+					final int chunk = Math.min(len, mBuffer.capacity());
+					mBuffer.clear();
+					mBuffer.put(b, off, chunk);
+					mBuffer.flip();
+					SerialPort.this.write(mBuffer, -1);
+					if (mBuffer.hasRemaining()) {
+						throw new IOException("Serial port closed while writing");
+					}
+					off += chunk;
+					len -= chunk;
+				}
+			}
+		}
+	}
 	static {
 		System.loadLibrary("serial_port");
 	}
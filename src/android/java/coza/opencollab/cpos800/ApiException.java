@@ -0,0 +1,24 @@
+package coza.opencollab.cpos800;
+
+/**
+ * Exception carrying the failure of an operation, thrown by {@link ApiFuture#get()} as the
+ * cause of the execution exception and by the transforms of a future to fail the result.
+ */
+public class ApiException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ApiFailure failure;
+
+    public ApiException(final ApiFailure failure) {
+        super(failure.getMessage());
+        this.failure = failure;
+    }
+
+    /**
+     * @return Reason the operation failed.
+     */
+    public ApiFailure getFailure() {
+        return failure;
+    }
+}
@@ -13,6 +13,10 @@ public class ApiFailure{
 		this.message = message;
 	}
 
+	public int getCode(){
+		return this.code;
+	}
+
 	public String getMessage(){
 		return this.message;
 	}
@@ -0,0 +1,401 @@
+package coza.opencollab.cpos800;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an operation on the device, the future based counterpart of {@link ApiCallback}.
+ *
+ * The future completes on the thread that owns the serial port of the operation, and the
+ * callbacks and stages added to it run right there, without handing the result to another
+ * thread. Stages should therefore be short, or start the next operation and return its
+ * future: read a card, look it up and print a receipt is a chain of futures without nested
+ * callbacks. Cancelling a future cancels the stages it came from, down to the operation on
+ * the device.
+ *
+ * The future is itself the callback of the operation, {@link #success(Object)} and
+ * {@link #failed(ApiFailure)} complete it, only the first completion counts.
+ *
+ * @param <T> Type of the result.
+ */
+public class ApiFuture<T> implements Future<T>, ApiCallback<T> {
+
+    /**
+     * Error code when the operation did not complete in time.
+     */
+    public static final int ERROR_TIMEOUT = 1;
+
+    /**
+     * Error code when the future got cancelled.
+     */
+    public static final int ERROR_CANCELLED = 2;
+
+    /**
+     * Transformation of the result of a future.
+     * @param <T> Type of the result.
+     * @param <R> Type of the transformed result.
+     */
+    public interface Transform<T, R> {
+        /**
+         * @param value Result of the future.
+         * @return The transformed result.
+         * @throws ApiException To fail the transformed future.
+         */
+        R apply(T value) throws ApiException;
+    }
+
+    /**
+     * Next operation started with the result of a future.
+     * @param <T> Type of the result.
+     * @param <R> Type of the result of the next operation.
+     */
+    public interface Stage<T, R> {
+        /**
+         * @param value Result of the future.
+         * @return Future of the next operation.
+         */
+        ApiFuture<R> apply(T value);
+    }
+
+    /**
+     * Timer failing the futures that did not complete in time, created when first used.
+     */
+    private static ScheduledExecutorService timer;
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private T value;
+    private ApiFailure failure;
+
+    /**
+     * Callbacks waiting for the future to complete, null once it completed.
+     */
+    private List<ApiCallback<? super T>> callbacks = new ArrayList<ApiCallback<? super T>>();
+
+    /**
+     * Action stopping the operation when the future gets cancelled.
+     */
+    private Runnable cancelAction;
+
+    /**
+     * Create a future to be completed by an operation.
+     */
+    public ApiFuture() {
+    }
+
+    /**
+     * @param value Result.
+     * @return A future that already succeeded.
+     */
+    public static <T> ApiFuture<T> completed(final T value) {
+        final ApiFuture<T> future = new ApiFuture<T>();
+        future.success(value);
+        return future;
+    }
+
+    /**
+     * @param failure Reason the operation failed.
+     * @return A future that already failed.
+     */
+    public static <T> ApiFuture<T> failure(final ApiFailure failure) {
+        final ApiFuture<T> future = new ApiFuture<T>();
+        future.failed(failure);
+        return future;
+    }
+
+    /**
+     * Complete the future with the result of the operation.
+     * @param parameter Result of the operation.
+     */
+    @Override
+    public void success(final T parameter) {
+        complete(parameter, null, false);
+    }
+
+    /**
+     * Complete the future with the failure of the operation.
+     * @param failure Reason the operation failed.
+     */
+    @Override
+    public void failed(final ApiFailure failure) {
+        complete(null, failure, false);
+    }
+
+    /**
+     * Complete the future and notify the waiting callbacks, unless it already completed.
+     * @return True if this completed the future.
+     */
+    private boolean complete(final T value, final ApiFailure failure, final boolean cancelled) {
+        final List<ApiCallback<? super T>> waiting;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.value = value;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            this.done = true;
+            waiting = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        for (ApiCallback<? super T> callback : waiting) {
+            notifyCallback(callback);
+        }
+        return true;
+    }
+
+    /**
+     * Notify a callback once the future completes. When the future already completed the
+     * callback is notified right away, on the calling thread.
+     * @param callback Callback receiving the result or the failure.
+     * @return This future.
+     */
+    public ApiFuture<T> whenComplete(final ApiCallback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        notifyCallback(callback);
+        return this;
+    }
+
+    private void notifyCallback(final ApiCallback<? super T> callback) {
+        if (failure == null) {
+            callback.success(value);
+        }
+        else {
+            callback.failed(failure);
+        }
+    }
+
+    /**
+     * Set the action stopping the operation when the future gets cancelled. Runs right
+     * away when the future already got cancelled.
+     * @param action Action stopping the operation.
+     * @return This future.
+     */
+    public ApiFuture<T> onCancel(final Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelAction = action;
+                return this;
+            }
+        }
+        action.run();
+        return this;
+    }
+
+    /**
+     * Cancel the operation. The future fails with {@link #ERROR_CANCELLED} right away, and
+     * the operation is told to stop.
+     * @param mayInterruptIfRunning Ignored, the operation stops through its deadline.
+     * @return False if the future already completed.
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        if (!complete(null, new ApiFailure(ERROR_CANCELLED, "Cancelled"), true)) {
+            return false;
+        }
+        final Runnable action;
+        synchronized (this) {
+            action = cancelAction;
+            cancelAction = null;
+        }
+        if (action != null) {
+            action.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return Reason the operation failed, null if it did not fail (yet).
+     */
+    public synchronized ApiFailure getFailure() {
+        return failure;
+    }
+
+    /**
+     * Wait for the result. Must not be called from the thread owning the serial port of
+     * the operation, which would wait for itself.
+     * @return Result of the operation.
+     * @throws CancellationException If the future got cancelled.
+     * @throws ExecutionException If the operation failed, with an {@link ApiException} as cause.
+     * @throws InterruptedException If the thread got interrupted while waiting.
+     */
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    /**
+     * Wait for the result at most the given time, see {@link #get()}.
+     * @throws TimeoutException If the future did not complete in time.
+     */
+    @Override
+    public synchronized T get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException(failure.getMessage());
+        }
+        if (failure != null) {
+            throw new ExecutionException(new ApiException(failure));
+        }
+        return value;
+    }
+
+    /**
+     * Transform the result once the future succeeds, on the thread completing the future.
+     * @param transform Transformation of the result.
+     * @return Future of the transformed result, it fails when this future fails.
+     */
+    public <R> ApiFuture<R> then(final Transform<? super T, ? extends R> transform) {
+        final ApiFuture<R> result = derive();
+        whenComplete(new ApiCallback<T>() {
+            @Override
+            public void success(T parameter) {
+                final R transformed;
+                try {
+                    transformed = transform.apply(parameter);
+                } catch (ApiException e) {
+                    result.failed(e.getFailure());
+                    return;
+                }
+                result.success(transformed);
+            }
+
+            @Override
+            public void failed(ApiFailure failure) {
+                result.failed(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Start the next operation once the future succeeds, on the thread completing the future.
+     * @param stage Starts the next operation.
+     * @return Future of the next operation, it fails when this future fails. Cancelling it
+     *         cancels this future, or the next operation once it started.
+     */
+    public <R> ApiFuture<R> thenCompose(final Stage<? super T, R> stage) {
+        final ApiFuture<R> result = derive();
+        whenComplete(new ApiCallback<T>() {
+            @Override
+            public void success(T parameter) {
+                if (result.isDone()) {
+                    return;
+                }
+                final ApiFuture<R> next = stage.apply(parameter);
+                result.onCancel(cancelling(next));
+                next.whenComplete(result);
+            }
+
+            @Override
+            public void failed(ApiFailure failure) {
+                result.failed(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Fail with {@link #ERROR_TIMEOUT} when the future does not complete in time, the
+     * operation is cancelled then.
+     * @param timeout Time in milliseconds.
+     * @return Future of the result, it completes like this future when that is in time.
+     */
+    public ApiFuture<T> withTimeout(final long timeout) {
+        final ApiFuture<T> result = derive();
+        final ScheduledFuture<?> expiry = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (result.complete(null, new ApiFailure(ERROR_TIMEOUT, "Timed out"), false)) {
+                    cancel(false);
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        whenComplete(new ApiCallback<T>() {
+            @Override
+            public void success(T parameter) {
+                expiry.cancel(false);
+                result.success(parameter);
+            }
+
+            @Override
+            public void failed(ApiFailure failure) {
+                expiry.cancel(false);
+                result.failed(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return A new future that cancels this future when it gets cancelled.
+     */
+    private <R> ApiFuture<R> derive() {
+        final ApiFuture<R> result = new ApiFuture<R>();
+        result.onCancel(cancelling(this));
+        return result;
+    }
+
+    private static Runnable cancelling(final ApiFuture<?> future) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                future.cancel(false);
+            }
+        };
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ApiFuture timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+}
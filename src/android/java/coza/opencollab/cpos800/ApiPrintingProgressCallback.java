@@ -0,0 +1,13 @@
+package coza.opencollab.cpos800;
+
+/**
+ * Printing callback that is also told how far the job was sent to the printer.
+ */
+public interface ApiPrintingProgressCallback extends ApiPrintingCallback {
+    /**
+     * Called after every frame of the job was sent to the printer.
+     * @param sent Number of bytes of the job sent so far.
+     * @param total Total number of bytes of the job.
+     */
+    void progress(int sent, int total);
+}
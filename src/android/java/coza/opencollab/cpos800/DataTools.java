@@ -6,6 +6,16 @@ package coza.opencollab.cpos800;
 
 public class DataTools {
 
+    /**
+     * Separator placed between bytes when a spacer is requested.
+     */
+    private static final char SPACER = ':';
+
+    /**
+     * Lookup table of the hex digits.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static String byteArrayToHex(byte[] a) {
        return byteArrayToHex(a, a.length);
     }
@@ -19,14 +29,143 @@ public class DataTools {
     }
 
     public static String byteArrayToHex(byte[] a, int length, boolean spacer) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for(int i = 0 ; i < length ; i++) {
-            sb.append(String.format("%02x", a[i]));
-            if(spacer && i < length - 1){
-                sb.append(":");
+        if (length <= 0) {
+            return "";
+        }
+        final char[] chars = new char[hexLength(length, spacer)];
+        final int size = byteArrayToHex(a, 0, length, spacer, chars, 0);
+        return new String(chars, 0, size);
+    }
+
+    /**
+     * Number of characters needed to encode bytes as hex.
+     * @param length Number of bytes.
+     * @param spacer Flag if the bytes are separated.
+     * @return Number of characters.
+     */
+    public static int hexLength(int length, boolean spacer) {
+        if (length <= 0) {
+            return 0;
+        }
+        return spacer ? length * 3 - 1 : length * 2;
+    }
+
+    /**
+     * Encode bytes as hex into a caller supplied character array.
+     * @param a Bytes to encode.
+     * @param offset Offset of the first byte to encode.
+     * @param length Number of bytes to encode.
+     * @param spacer Flag if the bytes should be separated by a colon.
+     * @param out Destination, must have room for {@link #hexLength(int, boolean)} characters.
+     * @param outOffset Offset in the destination to start writing.
+     * @return Number of characters written.
+     */
+    public static int byteArrayToHex(byte[] a, int offset, int length, boolean spacer, char[] out, int outOffset) {
+        int position = outOffset;
+        for (int i = 0; i < length; i++) {
+            if (spacer && i > 0) {
+                out[position++] = SPACER;
             }
+            final int value = a[offset + i] & 0xff;
+            out[position++] = HEX_DIGITS[value >>> 4];
+            out[position++] = HEX_DIGITS[value & 0x0f];
+        }
+        return position - outOffset;
+    }
+
+    /**
+     * Append bytes as hex to a string builder.
+     * @param sb Builder to append to.
+     * @param a Bytes to encode.
+     * @param offset Offset of the first byte to encode.
+     * @param length Number of bytes to encode.
+     * @param spacer Flag if the bytes should be separated by a colon.
+     * @return The string builder.
+     */
+    public static StringBuilder appendHex(StringBuilder sb, byte[] a, int offset, int length, boolean spacer) {
+        sb.ensureCapacity(sb.length() + hexLength(length, spacer));
+        for (int i = 0; i < length; i++) {
+            if (spacer && i > 0) {
+                sb.append(SPACER);
+            }
+            final int value = a[offset + i] & 0xff;
+            sb.append(HEX_DIGITS[value >>> 4]);
+            sb.append(HEX_DIGITS[value & 0x0f]);
+        }
+        return sb;
+    }
+
+    /**
+     * Decode a hex string, with or without colon separators, into bytes.
+     * @param hex Hex string to decode.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException If the string is not valid hex.
+     */
+    public static byte[] hexToByteArray(CharSequence hex) {
+        final byte[] out = new byte[hexByteCount(hex)];
+        hexToByteArray(hex, out, 0);
+        return out;
+    }
+
+    /**
+     * Count the bytes of a hex string, every byte may or may not be followed by a colon.
+     * @param hex Hex string.
+     * @return Number of bytes the string decodes to.
+     */
+    private static int hexByteCount(CharSequence hex) {
+        final int length = hex.length();
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            count++;
+            i += 2;
+            if (i < length && hex.charAt(i) == SPACER) {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decode a hex string, with or without colon separators, into a caller supplied array.
+     * @param hex Hex string to decode.
+     * @param out Destination of the bytes.
+     * @param outOffset Offset in the destination to start writing.
+     * @return Number of bytes written.
+     * @throws IllegalArgumentException If the string is not valid hex, or does not fit in
+     *         the destination.
+     */
+    public static int hexToByteArray(CharSequence hex, byte[] out, int outOffset) {
+        final int length = hex.length();
+        int position = outOffset;
+        int i = 0;
+        while (i < length) {
+            if (i + 1 >= length) {
+                throw new IllegalArgumentException("Incomplete hex byte at " + i);
+            }
+            if (position >= out.length) {
+                throw new IllegalArgumentException("Hex string does not fit in the output at " + i);
+            }
+            out[position++] = (byte) ((hexValue(hex.charAt(i)) << 4) | hexValue(hex.charAt(i + 1)));
+            i += 2;
+            if (i < length && hex.charAt(i) == SPACER) {
+                i++;
+            }
+        }
+        return position - outOffset;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
         }
-        return sb.toString();
+        throw new IllegalArgumentException("Invalid hex character: " + c);
     }
 
 }
@@ -0,0 +1,179 @@
+package coza.opencollab.cpos800;
+
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of latencies in microseconds, with a fixed memory footprint.
+ *
+ * Like an HDR histogram the buckets grow with the value: values below 64 have a bucket of
+ * their own, above that every power of two is split into 32 buckets, so the percentiles are
+ * accurate to about 3% of the value whatever its magnitude.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of a value that select the bucket within a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this limit have a bucket of their own.
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    /**
+     * Power of two of the first value past the linear buckets.
+     */
+    private static final int FIRST_MAGNITUDE = SUB_BUCKET_BITS + 1;
+
+    /**
+     * Power of two from which values end up in the last bucket, about 12 days.
+     */
+    private static final int MAX_MAGNITUDE = 40;
+
+    private final long[] counts = new long[LINEAR_LIMIT + (MAX_MAGNITUDE - FIRST_MAGNITUDE) * SUB_BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Record a latency.
+     * @param micros Latency in microseconds, negative values are recorded as 0.
+     */
+    public synchronized void record(long micros) {
+        final long value = Math.max(micros, 0);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Record the time passed since the start of an operation.
+     * @param startNanos Start of the operation, from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * @return Number of recorded latencies.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Lowest recorded latency in microseconds, 0 when nothing was recorded.
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return Highest recorded latency in microseconds.
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return Average latency in microseconds, 0 when nothing was recorded.
+     */
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Get the latency below which the given share of the latencies fall.
+     * @param percentile Percentile, from 0 to 100.
+     * @return Latency in microseconds, 0 when nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int index = 0; index < counts.length; index++) {
+            seen += counts[index];
+            if (seen >= target) {
+                // The last bucket also counts everything above the range of the buckets
+                if (index == counts.length - 1) {
+                    return max;
+                }
+                return Math.min(Math.max(highestValue(index), min), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forget all the recorded latencies.
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @return Summary of the latencies in milliseconds.
+     */
+    public synchronized JSONObject toJsonObject() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("min", getMin() / 1000.0);
+            json.put("mean", getMean() / 1000.0);
+            json.put("p50", getPercentile(50) / 1000.0);
+            json.put("p90", getPercentile(90) / 1000.0);
+            json.put("p99", getPercentile(99) / 1000.0);
+            json.put("p999", getPercentile(99.9) / 1000.0);
+            json.put("max", max / 1000.0);
+            return json;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value Latency in microseconds.
+     * @return Index of the bucket counting the latency.
+     */
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return LINEAR_LIMIT + (MAX_MAGNITUDE - FIRST_MAGNITUDE) * SUB_BUCKETS - 1;
+        }
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (magnitude - FIRST_MAGNITUDE) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index Index of a bucket.
+     * @return Highest latency in microseconds counted by the bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        final int magnitude = (index - LINEAR_LIMIT) / SUB_BUCKETS + FIRST_MAGNITUDE;
+        final int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,123 @@
+package coza.opencollab.cpos800;
+
+import android.os.SystemClock;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms of the operations on the device, to see how the
+ * terminals perform in the field.
+ *
+ * Counters and histograms are looked up by name once, and kept by the code recording
+ * them, so recording does not cost a lookup.
+ */
+public class Metrics {
+
+    private static volatile Metrics instance;
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Time the metrics were last reset.
+     */
+    private volatile long resetTime = SystemClock.uptimeMillis();
+
+    /**
+     * Get an instance of the metrics
+     * @return instance of the metrics.
+     */
+    public static Metrics getInstance(){
+        if(instance == null){
+            synchronized (Metrics.class) {
+                if(instance == null) {
+                    instance = new Metrics();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private Metrics(){}
+
+    /**
+     * Get a counter, creating it when it does not exist yet.
+     * @param name Name of the counter.
+     * @return The counter.
+     */
+    public synchronized AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Get a latency histogram, creating it when it does not exist yet.
+     * @param name Name of the histogram.
+     * @return The histogram.
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Count a failed operation by its error code.
+     * @param api Name of the API the operation belongs to.
+     * @param failure The failure.
+     */
+    public void recordFailure(String api, ApiFailure failure) {
+        counter(api + ".errors." + failure.getCode()).incrementAndGet();
+    }
+
+    /**
+     * Set all the counters and histograms back to zero.
+     */
+    public synchronized void reset() {
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        resetTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return The counters and the summaries of the histograms, with the latencies in
+     *         milliseconds, and the time in milliseconds they cover.
+     */
+    public synchronized JSONObject toJsonObject() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("period", SystemClock.uptimeMillis() - resetTime);
+            JSONObject counterValues = new JSONObject();
+            for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+                counterValues.put(counter.getKey(), counter.getValue().get());
+            }
+            json.put("counters", counterValues);
+            JSONObject histogramValues = new JSONObject();
+            for (Map.Entry<String, LatencyHistogram> histogram : new TreeMap<String, LatencyHistogram>(histograms).entrySet()) {
+                histogramValues.put(histogram.getKey(), histogram.getValue().toJsonObject());
+            }
+            json.put("histograms", histogramValues);
+            return json;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
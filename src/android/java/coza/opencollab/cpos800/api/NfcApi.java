@@ -4,13 +4,22 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import coza.opencollab.cpos800.serial.ByteRingBuffer;
+import coza.opencollab.cpos800.serial.Deadline;
+import coza.opencollab.cpos800.serial.ReadinessProbe;
 import coza.opencollab.cpos800.serial.SerialManager;
+import coza.opencollab.cpos800.serial.SerialScheduler;
 import coza.opencollab.cpos800.ApiCallback;
 import coza.opencollab.cpos800.ApiFailure;
+import coza.opencollab.cpos800.ApiFuture;
 import coza.opencollab.cpos800.DataTools;
+import coza.opencollab.cpos800.LatencyHistogram;
+import coza.opencollab.cpos800.Metrics;
 
 /**
  * API to work with the NFC
@@ -19,7 +28,21 @@ public class NfcApi {
 
     private static final String TAG = "NfcApi";
     private static final byte[] CMD_GET_ID = {0x08, 0x00, 0x01, 0x01, (byte)0xe3};
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    /**
+     * The reader is ready once it answers a card id request, with or without a card.
+     */
+    private static final ReadinessProbe READY_PROBE = new ReadinessProbe() {
+        @Override
+        public byte[] getCommand() {
+            return CMD_GET_ID;
+        }
+
+        @Override
+        public boolean isReady(ByteRingBuffer response) {
+            return response.available() >= 4;
+        }
+    };
 
     /**
      * Error code when there was a timeout waiting for a tag to be read.
@@ -37,9 +60,83 @@ public class NfcApi {
      */
     private static final int ERROR_IO = 3;
 
+    /**
+     * Time in milliseconds to wait for a card before giving up.
+     */
+    private static final int CARD_TIMEOUT = 5000;
+
+    /**
+     * Time in milliseconds after the last activity during which the reader is polled
+     * at the fastest rate.
+     */
+    private static final int FAST_POLL_PERIOD = 500;
+
+    /**
+     * Delay in milliseconds between polls during the fast poll period, it doubles every
+     * following period.
+     */
+    private static final int MIN_POLL_DELAY = 20;
+
+    /**
+     * Upper bound in milliseconds of the delay between polls.
+     */
+    private static final int MAX_POLL_DELAY = 200;
+
+    /**
+     * Longest time in milliseconds the reader may take to start answering.
+     */
+    private static final int MAX_PROCESSING_TIME = 500;
+
+    /**
+     * Longest interval of silence in milliseconds within an answer of the reader.
+     */
+    private static final int MAX_TRANSMIT_INTERVAL = 100;
+
     private static NfcApi instance;
 
-    private volatile boolean cancelled = false;
+    /**
+     * Parser of the answers of the reader.
+     */
+    private final NfcFrameParser frameParser = new NfcFrameParser();
+
+    /**
+     * Response times of the reader, used to size the read windows. Until the reader was
+     * measured the longest windows are used.
+     */
+    private final ResponseTimeTracker responseTimes = new ResponseTimeTracker(10, MAX_PROCESSING_TIME, 5, MAX_TRANSMIT_INTERVAL);
+
+    /**
+     * Deadlines of the card reads that did not finish yet, cancelling reading cancels them.
+     * Guarded by the set.
+     */
+    private final Set<Deadline> cardReads = new HashSet<Deadline>();
+
+    /**
+     * Deadline of the running scan, it gets cancelled when scanning is started again or
+     * stopped. Guarded by this.
+     */
+    private Deadline scanDeadline = new Deadline();
+
+    /**
+     * Polls of the reader, and polls the reader did not answer.
+     */
+    private final AtomicLong polls = Metrics.getInstance().counter("nfc.polls");
+    private final AtomicLong pollTimeouts = Metrics.getInstance().counter("nfc.pollTimeouts");
+
+    /**
+     * Cards that were read.
+     */
+    private final AtomicLong cards = Metrics.getInstance().counter("nfc.cards");
+
+    /**
+     * Time from a poll until the answer of the reader was complete.
+     */
+    private final LatencyHistogram pollTime = Metrics.getInstance().histogram("nfc.poll");
+
+    /**
+     * Time from the start of reading a card until the card was read.
+     */
+    private final LatencyHistogram cardReadTime = Metrics.getInstance().histogram("nfc.cardRead");
 
     public static NfcApi getInstance(){
         if(instance == null){
@@ -48,93 +145,322 @@ public class NfcApi {
         return instance;
     }
 
+    /**
+     * Cancel reading a card. Reads that are waiting for a card stop right away, reads that
+     * did not start yet fail as soon as they start.
+     * @param callback Callback notified once reading was cancelled.
+     */
     public void cancel(final ApiCallback<String> callback){
-        this.cancelled = true;
+        synchronized (cardReads) {
+            for (Deadline deadline : cardReads) {
+                deadline.cancel();
+            }
+        }
         callback.success("cancelled");
     }
 
-    private boolean testValidSerial(byte[] data){
-        for (byte aData : data) {
-            if (aData != 0) {
+    /**
+     * Start scanning for cards continuously. The reader stays open and is polled at the
+     * given interval, every card that is presented is passed to the callback. The same card
+     * is only reported again once it was out of the field for longer than the debounce time.
+     * Starting a new scan stops the previous one.
+     *
+     * @param pollInterval Time in milliseconds between polls of the reader.
+     * @param debounceTime Time in milliseconds a card must be gone before it is reported again.
+     * @param callback Callback receiving every card, failed is called once the scan stops.
+     */
+    public void startScan(final int pollInterval, final int debounceTime, final ApiCallback<byte[]> callback){
+        final Deadline deadline = new Deadline();
+        synchronized (this) {
+            scanDeadline.cancel();
+            scanDeadline = deadline;
+        }
+        // Scanning is a background operation, other operations may interrupt it
+        SerialScheduler.getInstance().submit(SerialManager.SerialInterface.NFC, SerialScheduler.PRIORITY_LOW, new Runnable() {
+            @Override
+            public void run() {
+                scan(deadline, pollInterval, debounceTime, callback);
+            }
+        });
+    }
+
+    /**
+     * Stop scanning for cards.
+     * @param callback Callback notified once the scan was asked to stop.
+     */
+    public void stopScan(final ApiCallback<String> callback){
+        synchronized (this) {
+            scanDeadline.cancel();
+        }
+        callback.success("stopped");
+    }
+
+    private void scan(final Deadline deadline, final int pollInterval, final int debounceTime, final ApiCallback<byte[]> callback){
+        Log.d(TAG, "scan()");
+        final SerialManager serialManager = SerialManager.getInstance(SerialManager.SerialInterface.NFC);
+        final SerialScheduler scheduler = SerialScheduler.getInstance();
+        final byte[] readBuffer = new byte[1024];
+        // Last card that was reported, and the last time it was in the field
+        byte[] lastCard = null;
+        long lastSeen = 0;
+        try {
+            openReader(serialManager);
+            while (!deadline.isCancelled()) {
+                final int length = poll(serialManager, readBuffer, deadline);
+                if (isCardSerial(readBuffer, length)) {
+                    final long now = SystemClock.uptimeMillis();
+                    final byte[] card = Arrays.copyOf(readBuffer, length);
+                    if (!Arrays.equals(card, lastCard) || now - lastSeen > debounceTime) {
+                        lastCard = card;
+                        cards.incrementAndGet();
+                        callback.success(card.clone());
+                    }
+                    lastSeen = now;
+                }
+                // Wait for the next poll, letting waiting operations on the reader go first
+                if (scheduler.pause(SerialScheduler.PRIORITY_LOW, pollInterval, deadline)) {
+                    openReader(serialManager);
+                }
+            }
+            Log.i(TAG, "Scanning stopped");
+            // Stopping is how every scan ends, it is not counted as a failure
+            callback.failed(new ApiFailure(ERROR_CANCELLED, "Scanning stopped"));
+        } catch (IOException e) {
+            if (deadline.isCancelled()) {
+                Log.i(TAG, "Scanning stopped");
+                callback.failed(new ApiFailure(ERROR_CANCELLED, "Scanning stopped"));
+            }
+            else {
+                Log.e(TAG, "Exception while scanning for cards", e);
+                failed(callback, new ApiFailure(ERROR_IO, "IO Error while scanning for cards"));
+            }
+        } finally {
+            serialManager.releaseSerialPort();
+        }
+    }
+
+    /**
+     * Ask the reader for the id of a card. The answer is expected within the time the reader
+     * usually takes, when it is slower than that the answer is waited for up to the longest
+     * time the reader may take, so a late answer is not mistaken for the answer to the
+     * next poll.
+     * @param serialManager Serial manager
+     * @param readBuffer Buffer receiving the answer.
+     * @param deadline Deadline of the operation, waiting for the answer stops when it expires.
+     * @return Length of the answer, 0 if the reader did not answer.
+     * @throws IOException
+     */
+    private int poll(final SerialManager serialManager, final byte[] readBuffer, final Deadline deadline) throws IOException {
+        final int processingTime = responseTimes.getProcessingTime();
+        final int transmitInterval = responseTimes.getTransmitInterval();
+        final long pollStart = System.nanoTime();
+        polls.incrementAndGet();
+        serialManager.write(CMD_GET_ID, 0, CMD_GET_ID.length, deadline);
+        final long start = SystemClock.uptimeMillis();
+        int length = serialManager.readFrame(readBuffer, processingTime, transmitInterval, deadline);
+        if (length == 0 && processingTime < MAX_PROCESSING_TIME) {
+            length = serialManager.readFrame(readBuffer, MAX_PROCESSING_TIME - processingTime, transmitInterval, deadline);
+        }
+        if (length == 0) {
+            // Only a reader that had the full time to answer was slow
+            if (!deadline.hasExpired()) {
+                responseTimes.recordMissed(MAX_PROCESSING_TIME);
+                pollTimeouts.incrementAndGet();
+            }
+            return 0;
+        }
+        pollTime.recordSince(pollStart);
+        if (NfcFrameParser.isNoCard(readBuffer, length)) {
+            // The no card answer is complete as soon as it arrived, a card serial only after
+            // the transmit interval
+            responseTimes.record(SystemClock.uptimeMillis() - start);
+        }
+        else {
+            responseTimes.record(SystemClock.uptimeMillis() - start - transmitInterval);
+        }
+        return length;
+    }
+
+    /**
+     * Notify a callback that the operation failed, and count the failure.
+     * @param callback Callback of the operation.
+     * @param failure Reason the operation failed.
+     */
+    private static void failed(final ApiCallback<?> callback, final ApiFailure failure) {
+        Metrics.getInstance().recordFailure("nfc", failure);
+        callback.failed(failure);
+    }
+
+    /**
+     * Delay between polls, polling fast right after activity and backing off the longer
+     * nothing happens.
+     * @param idleTime Time in milliseconds since the last activity.
+     * @return Delay in milliseconds.
+     */
+    private static int pollDelay(long idleTime) {
+        final long periods = Math.min(idleTime / FAST_POLL_PERIOD, 8);
+        return (int) Math.min((long) MIN_POLL_DELAY << periods, MAX_POLL_DELAY);
+    }
+
+    /**
+     * Check if the answer of the reader to CMD_GET_ID is the serial of a card.
+     * @param buffer Answer of the reader.
+     * @param length Length of the answer.
+     * @return True if the answer is a card serial.
+     */
+    private boolean isCardSerial(byte[] buffer, int length){
+        // No card read
+        if (length < 4 || NfcFrameParser.isNoCard(buffer, length)) {
+            return false;
+        }
+        // We read way to many bytes to be a legit card serial
+        if (length > 8) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != 0) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Open the reader, and wait for it to settle when it was not open yet.
+     * @param serialManager Serial manager
+     * @throws IOException
+     */
+    private void openReader(final SerialManager serialManager) throws IOException {
+        final boolean wasOpen = serialManager.openSerialPort();
+        serialManager.setFrameParser(frameParser);
+        if(!wasOpen) {
+            serialManager.awaitReady(READY_PROBE, serialManager.getProfile().getSettleTime());
+        }
+    }
+
+    /**
+     * Read the id of the next card presented to the reader, see {@link #getCardId()}.
+     * @param callback Callback receiving the card serial.
+     */
     public void getCardId(final ApiCallback<byte[]> callback){
-        executorService.execute(new Runnable() {
+        getCardId().whenComplete(callback);
+    }
+
+    /**
+     * Read the id of the next card presented to the reader. The future completes on the
+     * thread of the reader, so the stages added to it use the card right away. Cancelling
+     * the future stops waiting for a card.
+     * @return Future of the card serial.
+     */
+    public ApiFuture<byte[]> getCardId(){
+        final ApiFuture<byte[]> future = new ApiFuture<byte[]>();
+        // The deadline is only started once the reader is used, but can be cancelled right away
+        final Deadline deadline = new Deadline();
+        synchronized (cardReads) {
+            cardReads.add(deadline);
+        }
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                deadline.cancel();
+            }
+        });
+        // A card read goes ahead of a running scan, which lets it use the reader between polls
+        SerialScheduler.getInstance().submit(SerialManager.SerialInterface.NFC, SerialScheduler.PRIORITY_NORMAL, new Runnable() {
             @Override
             public void run() {
-                cancelled = false;
-                Log.d(TAG, "getCardId()");
-                final SerialManager serialManager = SerialManager.getInstance();
-                boolean foundCard = false;
-                int length = 0; // Length of the data that we have read
-                final byte[] readBuffer = new byte[1024];
                 try {
-                    serialManager.openSerialPort(SerialManager.SerialInterface.NFC);
-                    int tries = 50, attempts = 0;
-                    SystemClock.sleep(100);
-                    while(!cancelled && attempts < tries) {
-                        attempts++;
-                        serialManager.write(CMD_GET_ID);
-                        length = serialManager.read(readBuffer, 500, 100);
-                        if (length < 4 || (length == 4 && readBuffer[0]==8 && readBuffer[1] == 1 && readBuffer[3]==4)) {
-                            length = 0;
-                        }
-                        else{
-                            break;
-                        }
-                        // No card read
+                    readCardId(deadline, future);
+                } finally {
+                    synchronized (cardReads) {
+                        cardReads.remove(deadline);
+                    }
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Poll the reader until a card is presented, the deadline expires or reading gets
+     * cancelled, and notify the callback.
+     * @param deadline Deadline of the read, started once the reader is used.
+     * @param callback Callback receiving the card serial.
+     */
+    private void readCardId(final Deadline deadline, final ApiCallback<byte[]> callback){
+        Log.d(TAG, "getCardId()");
+        final long readStart = System.nanoTime();
+        final SerialManager serialManager = SerialManager.getInstance(SerialManager.SerialInterface.NFC);
+        int length = 0; // Length of the data that we have read
+        final byte[] readBuffer = new byte[1024];
+        if (!deadline.isCancelled()) {
+            deadline.expireAfter(CARD_TIMEOUT);
+            try {
+                final SerialScheduler scheduler = SerialScheduler.getInstance();
+                final long start = SystemClock.uptimeMillis();
+                int attempts = 0;
+                openReader(serialManager);
+                while(!deadline.hasExpired()) {
+                    // Between polls, let waiting operations with a higher priority use the serial
+                    // port, and reopen the reader once they are done. Printing has a serial port
+                    // of its own and does not wait for this
+                    final int delay = attempts++ == 0 ? 0 : pollDelay(SystemClock.uptimeMillis() - start);
+                    if(scheduler.pause(SerialScheduler.PRIORITY_NORMAL, delay, deadline)) {
+                        openReader(serialManager);
                     }
-                } catch (IOException e) {
-                    if(cancelled){
-                        Log.i(TAG, "Reading card got cancelled");
-                        callback.failed(new ApiFailure(ERROR_CANCELLED, "Cancelled reading card"));
+                    if (deadline.hasExpired()) {
+                        break;
+                    }
+                    length = poll(serialManager, readBuffer, deadline);
+                    if (length < 4 || NfcFrameParser.isNoCard(readBuffer, length)) {
+                        length = 0;
                     }
                     else{
-                        Log.e(TAG, "Exception while trying to read card", e);
-                        callback.failed(new ApiFailure(ERROR_IO, "IO Error while reading card ID"));
+                        break;
                     }
+                    // No card read
                 }
-                finally{
-                    serialManager.closeSerialPort();
-                }
-
-                if(cancelled){
-                    Log.i(TAG, "Reading card got cancelled");
-                    callback.failed(new ApiFailure(ERROR_CANCELLED, "Cancelled reading card"));
-                    return;
-                }
-
-                // We read way to many bytes to be a legit card serial
-                if(length > 8){
-                    Log.e(TAG, "Serial returned too much data to be a serial number: " + length);
-                    callback.failed(new ApiFailure(ERROR_IO, "IO Error while reading card ID - invalid serial data."));
-                    return;
-                }
-
-                if(length < 4){
-                    Log.i(TAG, "Timeout reading Tag");
-                    callback.failed(new ApiFailure(ERROR_TIMEOUT, "Timeout reading Tag"));
+            } catch (IOException e) {
+                // Writing is refused once the deadline expired, that is not an error
+                if (!deadline.hasExpired()) {
+                    Log.e(TAG, "Exception while trying to read card", e);
+                    failed(callback, new ApiFailure(ERROR_IO, "IO Error while reading card ID"));
                     return;
                 }
+            }
+            finally{
+                serialManager.releaseSerialPort();
+            }
+        }
 
-                // Copy the data to a new buffer that only contains the read bytes
-                byte[] data = new byte[length];
-                System.arraycopy(readBuffer, 0, data, 0, length);
+        if(deadline.isCancelled()){
+            Log.i(TAG, "Reading card got cancelled");
+            failed(callback, new ApiFailure(ERROR_CANCELLED, "Cancelled reading card"));
+            return;
+        }
 
-                if(testValidSerial(data)){
-                    callback.success(data);
-                }
-                else{
-                    Log.i(TAG, "Invalid card serial");
-                    callback.failed(new ApiFailure(ERROR_IO, "Invalid card serial"));
-                }
-            }
-        });
+        // We read way to many bytes to be a legit card serial
+        if(length > 8){
+            Log.e(TAG, "Serial returned too much data to be a serial number: " + length);
+            failed(callback, new ApiFailure(ERROR_IO, "IO Error while reading card ID - invalid serial data."));
+            return;
+        }
 
+        if(length < 4){
+            Log.i(TAG, "Timeout reading Tag");
+            failed(callback, new ApiFailure(ERROR_TIMEOUT, "Timeout reading Tag"));
+            return;
+        }
 
+        if(isCardSerial(readBuffer, length)){
+            cards.incrementAndGet();
+            cardReadTime.recordSince(readStart);
+            // Copy the data to a new buffer that only contains the read bytes
+            callback.success(Arrays.copyOf(readBuffer, length));
+        }
+        else{
+            Log.i(TAG, "Invalid card serial");
+            failed(callback, new ApiFailure(ERROR_IO, "Invalid card serial"));
+        }
     }
 }
@@ -0,0 +1,69 @@
+package coza.opencollab.cpos800.api;
+
+import coza.opencollab.cpos800.serial.FrameParser;
+
+/**
+ * Parser of the answers of the NFC reader to a card id request.
+ *
+ * When there is no card in the field the reader answers with the 4 byte frame
+ * 08 01 xx 04, which is recognised as soon as its last byte arrives. Otherwise the reader
+ * answers with the bare serial of the card, which has no header or terminator, so it is only
+ * complete once the line went silent.
+ */
+class NfcFrameParser implements FrameParser {
+
+    /**
+     * Length of the answer when there is no card in the field.
+     */
+    static final int NO_CARD_LENGTH = 4;
+
+    /**
+     * Longest answer the parser keeps collecting, anything longer is not a card serial and
+     * gets handed over as it is.
+     */
+    private static final int MAX_FRAME_LENGTH = 64;
+
+    private final byte[] pending = new byte[NO_CARD_LENGTH];
+    private int pendingLength = 0;
+
+    /**
+     * Check if an answer of the reader says that there is no card in the field.
+     * @param buffer Answer of the reader.
+     * @param length Length of the answer.
+     * @return True if there is no card.
+     */
+    static boolean isNoCard(byte[] buffer, int length) {
+        return length == NO_CARD_LENGTH && buffer[0] == 8 && buffer[1] == 1 && buffer[3] == 4;
+    }
+
+    @Override
+    public int feed(byte b) {
+        if (pendingLength < NO_CARD_LENGTH) {
+            pending[pendingLength] = b;
+        }
+        pendingLength++;
+        if (pendingLength == NO_CARD_LENGTH && isNoCard(pending, pendingLength)) {
+            return complete();
+        }
+        if (pendingLength == MAX_FRAME_LENGTH) {
+            return complete();
+        }
+        return 0;
+    }
+
+    @Override
+    public int flush() {
+        return complete();
+    }
+
+    @Override
+    public void reset() {
+        pendingLength = 0;
+    }
+
+    private int complete() {
+        final int length = pendingLength;
+        pendingLength = 0;
+        return length;
+    }
+}
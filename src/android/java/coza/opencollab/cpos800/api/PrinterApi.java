@@ -1,17 +1,41 @@
 package coza.opencollab.cpos800.api;
 
-import android.os.SystemClock;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
 
 import coza.opencollab.cpos800.ApiCallback;
 import coza.opencollab.cpos800.ApiFailure;
+import coza.opencollab.cpos800.ApiFuture;
 import coza.opencollab.cpos800.ApiPrintingCallback;
+import coza.opencollab.cpos800.ApiPrintingProgressCallback;
 import coza.opencollab.cpos800.DataTools;
+import coza.opencollab.cpos800.LatencyHistogram;
+import coza.opencollab.cpos800.Metrics;
+import coza.opencollab.cpos800.serial.ByteRingBuffer;
+import coza.opencollab.cpos800.serial.Deadline;
+import coza.opencollab.cpos800.serial.FrameParser;
+import coza.opencollab.cpos800.serial.ReadinessProbe;
 import coza.opencollab.cpos800.serial.SerialManager;
+import coza.opencollab.cpos800.serial.SerialScheduler;
 
 /**
  * API to work with the NFC
@@ -19,11 +43,136 @@ import coza.opencollab.cpos800.serial.SerialManager;
 public class PrinterApi {
 
     private static final String TAG = "PrinterApi";
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
     private static final byte[] CMD_INIT_PRINTER = { 0x1B, 0x40 };// Initialize the printer
     private static final byte[] CMD_ALIGN = { 0x1B, 0x61, 0x00 }; // Align command, default is left
 
+    private static final byte[] CMD_STATUS = { 0x10, 0x04, 0x01 }; // Transmit the printer status
+
+    private static final byte[] CMD_BARCODE_TEXT_BELOW = { 0x1D, 0x48, 0x02 }; // Print the barcode text below the barcode
+    private static final byte[] CMD_BARCODE_HEIGHT = { 0x1D, 0x68, 0x50 }; // Barcode height of 80 dots
+    private static final byte[] CMD_BARCODE_WIDTH = { 0x1D, 0x77, 0x02 }; // Barcode module width of 2 dots
+    private static final byte[] CMD_BARCODE = { 0x1D, 0x6B }; // Print barcode, followed by the type, length and data
+
+    private static final byte[] CMD_QR_MODEL = { 0x1D, 0x28, 0x6B, 0x04, 0x00, 0x31, 0x41, 0x32, 0x00 }; // QR code model 2
+    private static final byte[] CMD_QR_SIZE = { 0x1D, 0x28, 0x6B, 0x03, 0x00, 0x31, 0x43 }; // QR code module size, followed by the size
+    private static final byte[] CMD_QR_ERROR_CORRECTION = { 0x1D, 0x28, 0x6B, 0x03, 0x00, 0x31, 0x45, 0x31 }; // QR code error correction level M
+    private static final byte[] CMD_QR_STORE = { 0x1D, 0x28, 0x6B }; // Store the QR code data, followed by the length, 0x31 0x50 0x30 and the data
+    private static final byte[] CMD_QR_PRINT = { 0x1D, 0x28, 0x6B, 0x03, 0x00, 0x31, 0x51, 0x30 }; // Print the stored QR code
+
+    /**
+     * Barcode type CODE39.
+     */
+    public static final int BARCODE_CODE39 = 69;
+
+    /**
+     * Barcode type EAN13.
+     */
+    public static final int BARCODE_EAN13 = 67;
+
+    /**
+     * Barcode type CODE128.
+     */
+    public static final int BARCODE_CODE128 = 73;
+
+    /**
+     * Maximum size in bytes of the encoded images that are kept for printing them again.
+     */
+    private static final int IMAGE_CACHE_SIZE = 256 * 1024;
+
+    /**
+     * Maximum number of bytes a QR code with error correction level M can hold.
+     */
+    private static final int MAX_QR_CODE_LENGTH = 2331;
+
+    /**
+     * Maximum number of bytes sent to the printer in a frame.
+     */
     private static final int MAX_DATA_SIZE = 1000;
+
+    /**
+     * Default maximum number of bytes sent to the printer that it did not print yet.
+     */
+    private static final int DEFAULT_FLOW_WINDOW = 4096;
+
+    /**
+     * Maximum time in milliseconds to wait for the printer to print a job.
+     */
+    private static final int MAX_PRINTING_TIME = 30000;
+
+    /**
+     * Status returned by the printer when it received a job.
+     */
+    private static final byte STATUS_RECEIVED = 0x02;
+
+    /**
+     * Status returned by the printer when it completed a job.
+     */
+    private static final byte STATUS_DONE = 0x08;
+
+    /**
+     * Status returned by the printer when it is out of paper.
+     */
+    private static final byte STATUS_OUT_OF_PAPER = 0x01;
+
+    /**
+     * Status returned by the printer when it is too hot.
+     */
+    private static final byte STATUS_TOO_HOT = 0x04;
+
+    /**
+     * Mask of the bits that are fixed in the answer to a status request (DLE EOT), bits 1
+     * and 4 are set and bits 0 and 7 are clear. None of the printing statuses match it.
+     */
+    private static final int STATUS_REQUEST_MASK = 0x93;
+
+    /**
+     * Fixed bits of the answer to a status request (DLE EOT).
+     */
+    private static final int STATUS_REQUEST_ANSWER = 0x12;
+
+    /**
+     * Time in milliseconds the printer needs to process the alignment, when it does not
+     * answer the readiness handshake.
+     */
+    private static final int ALIGN_TIME = 200;
+
+    /**
+     * The printer is ready once it answers a status request.
+     */
+    private static final ReadinessProbe READY_PROBE = new ReadinessProbe() {
+
+        private final byte[] command = frame(CMD_STATUS);
+
+        @Override
+        public byte[] getCommand() {
+            return command;
+        }
+
+        @Override
+        public boolean isReady(ByteRingBuffer response) {
+            return response.available() > 0;
+        }
+    };
+
+    /**
+     * The printer answers with single status bytes, every byte is a complete response.
+     */
+    private static final FrameParser STATUS_PARSER = new FrameParser() {
+        @Override
+        public int feed(byte b) {
+            return 1;
+        }
+
+        @Override
+        public int flush() {
+            return 0;
+        }
+
+        @Override
+        public void reset() {
+        }
+    };
+
     /**
      * Error code when there was a timeout waiting for a tag to be read.
      */
@@ -41,7 +190,98 @@ public class PrinterApi {
 
     private static PrinterApi instance;
 
-    private boolean cancelled = false;
+    /**
+     * Cancelled when printing gets cancelled, the batches taken from the queue up to then
+     * are printed under it. Guarded by the job queue.
+     */
+    private Deadline printDeadline = new Deadline();
+
+    /**
+     * Deadline of the batch being printed, only used from the scheduler thread.
+     */
+    private Deadline batchDeadline = printDeadline;
+
+    /**
+     * Jobs waiting to be printed.
+     */
+    private final BlockingQueue<PrintJob> jobQueue = new LinkedBlockingQueue<PrintJob>();
+
+    /**
+     * Serial port of the printer.
+     */
+    private final SerialManager serialManager = SerialManager.getInstance(SerialManager.SerialInterface.PRINTER);
+
+    /**
+     * Encoder for the frames sent to the printer, only used from the scheduler thread.
+     */
+    private final PrinterFrameEncoder frameEncoder = new PrinterFrameEncoder(MAX_DATA_SIZE);
+
+    /**
+     * Maximum number of bytes sent to the printer in a frame.
+     */
+    private volatile int chunkSize = MAX_DATA_SIZE;
+
+    /**
+     * Maximum number of bytes sent to the printer that it did not print yet, 0 to send
+     * the jobs without waiting for the printer.
+     */
+    private volatile int flowWindow = DEFAULT_FLOW_WINDOW;
+
+    /**
+     * Frames of the current batch the printer did not report the status of yet, only used
+     * from the scheduler thread.
+     */
+    private final ArrayDeque<SentFrame> unconfirmedFrames = new ArrayDeque<SentFrame>();
+
+    /**
+     * Number of bytes of the current batch the printer did not print yet, only used from
+     * the scheduler thread.
+     */
+    private int bytesInFlight = 0;
+
+    /**
+     * Number of jobs of the current batch that were printed, only used from the scheduler
+     * thread.
+     */
+    private int completedJobs = 0;
+
+    /**
+     * Status response read from the printer, only used from the scheduler thread.
+     */
+    private final byte[] statusResponse = new byte[1];
+
+    /**
+     * Jobs that were printed, and the bytes and frames sent to the printer.
+     */
+    private final AtomicLong jobsPrinted = Metrics.getInstance().counter("printer.jobs");
+    private final AtomicLong bytesSent = Metrics.getInstance().counter("printer.bytes");
+    private final AtomicLong framesSent = Metrics.getInstance().counter("printer.frames");
+
+    /**
+     * Times sending had to wait for the printer to print, before the next frame fit in the
+     * window.
+     */
+    private final AtomicLong flowWaits = Metrics.getInstance().counter("printer.flowWaits");
+
+    /**
+     * Time from queueing a job until it was printed.
+     */
+    private final LatencyHistogram jobTime = Metrics.getInstance().histogram("printer.job");
+
+    /**
+     * Time from sending a frame until the printer reported it printed.
+     */
+    private final LatencyHistogram frameTime = Metrics.getInstance().histogram("printer.frame");
+
+    /**
+     * Encoded images by the content hash of the image file.
+     */
+    private final RasterCache imageCache = new RasterCache(IMAGE_CACHE_SIZE);
+
+    /**
+     * Compiled receipt templates by their id.
+     */
+    private final Map<String, ReceiptTemplate> templates = new ConcurrentHashMap<String, ReceiptTemplate>();
 
     public static PrinterApi getInstance(){
         if(instance == null){
@@ -50,179 +290,917 @@ public class PrinterApi {
         return instance;
     }
 
+    /**
+     * Cancel printing. The batch being printed stops right away, and the jobs that have not
+     * been printed yet are notified that they got cancelled.
+     *
+     * @param callback Callback notified once printing was cancelled
+     */
     public void cancel(final ApiCallback<String> callback){
-        this.cancelled = true;
+        // Jobs that have not been sent to the printer yet will not be printed
+        final List<PrintJob> queued = new ArrayList<PrintJob>();
+        synchronized (jobQueue) {
+            printDeadline.cancel();
+            jobQueue.drainTo(queued);
+        }
+        failJobs(queued, 0, new ApiFailure(ERROR_CANCELLED, "Cancelled printing"));
         callback.success("cancelled");
     }
 
     /**
-     * Package the instructions to send to the printer
+     * Set how the print jobs are paced. The printer reports the status of every frame that
+     * ends with a new line once it printed the frame, the jobs are only sent ahead of those
+     * reports as far as the window allows, so the buffer of the printer does not overrun.
+     *
+     * @param chunkSize Maximum number of bytes sent in a frame, from 1 to 1000
+     * @param window Maximum number of bytes sent that were not printed yet, 0 to send the
+     *               jobs without waiting for the printer
+     * @throws IllegalArgumentException If the chunk size or the window is out of range
+     */
+    public void setFlowControl(final int chunkSize, final int window){
+        if (chunkSize < 1 || chunkSize > MAX_DATA_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        if (window < 0) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        Log.d(TAG, "setFlowControl() - chunk size: " + chunkSize + " window: " + window);
+        this.chunkSize = chunkSize;
+        this.flowWindow = window;
+    }
+
+    /**
+     * Package a command into a new frame.
+     *
+     * @param command Command being sent to the printer
+     * @return The packaged command
+     */
+    private static byte[] frame(final byte[] command) {
+        final PrinterFrameEncoder encoder = new PrinterFrameEncoder(command.length);
+        final int frameLength = encoder.encode(command, 0, command.length);
+        final byte[] frame = new byte[frameLength];
+        System.arraycopy(encoder.getFrame(), 0, frame, 0, frameLength);
+        return frame;
+    }
+
+    /**
+     * Package the instructions into a frame and write it to the printer.
      *
-     * @param sendingData Instructions being sent to the printer
-     * @return The packaged instructrion
+     * @param data Instructions being sent to the printer
+     * @param offset Offset of the first byte to send
+     * @param length Number of bytes to send
+     * @param resetReadBuffer Flag if the responses received so far should be discarded
+     * @throws IOException
      */
-    private static final byte[] packageData(byte[] sendingData) {
-        return packageData(sendingData, sendingData.length);
+    private void writeFrame(final byte[] data, final int offset, final int length, final boolean resetReadBuffer) throws IOException {
+        writeFrame(frameEncoder.encode(data, offset, length), resetReadBuffer);
     }
+
     /**
-     * Package the instructions to send to the printer
+     * Package the next instructions of a buffer into a frame and write it to the printer.
      *
-     * @param sendingData Instructions being sent to the printer
-     * @return The packaged instructrion
+     * @param data Instructions being sent to the printer, the position is moved past the sent bytes
+     * @param length Number of bytes to send
+     * @param resetReadBuffer Flag if the responses received so far should be discarded
+     * @throws IOException
      */
-    private static final byte[] packageData(byte[] sendingData, int len) {
-        final byte[] sizeBytes = integerToBytes(len);
-        final byte[] header = { (byte) 0xCA, (byte) 0xDF, (byte) 0x00, (byte) 0x35 };
+    private void writeFrame(final ByteBuffer data, final int length, final boolean resetReadBuffer) throws IOException {
+        // The frame goes out in a single gathering write, straight from the data
+        final ByteBuffer[] frame = frameEncoder.gather(data, length);
+        if (resetReadBuffer) {
+            serialManager.write(frame, batchDeadline);
+        }
+        else {
+            serialManager.append(frame, batchDeadline);
+        }
+    }
 
-        // Full command that will be returned
-        final byte[] cmd = new byte[header.length + 2 + len + 1];
+    /**
+     * Write the encoded frame to the printer.
+     *
+     * @param frameLength Length of the frame in the frame encoder
+     * @param resetReadBuffer Flag if the responses received so far should be discarded
+     * @throws IOException
+     */
+    private void writeFrame(final int frameLength, final boolean resetReadBuffer) throws IOException {
+        if (resetReadBuffer) {
+            serialManager.write(frameEncoder.getFrame(), 0, frameLength, batchDeadline);
+        }
+        else {
+            serialManager.append(frameEncoder.getFrame(), 0, frameLength, batchDeadline);
+        }
+    }
 
-        // Copy the header
-        System.arraycopy(header, 0, cmd, 0, header.length);
+    void print(final byte[] data) throws IOException {
+        print(ByteBuffer.wrap(data), true);
+    }
 
-        // Add the first 2 bytes of the packet size
-        cmd[header.length] = sizeBytes[1];
-        cmd[header.length + 1] = sizeBytes[0];
+    /**
+     * Send data to the printer in frames, without waiting for the printer.
+     *
+     * @param data Instructions being sent to the printer
+     * @param resetReadBuffer Flag if the responses received so far should be discarded
+     * @throws IOException
+     */
+    private void print(final ByteBuffer data, final boolean resetReadBuffer) throws IOException {
+        // Read through a view of the data, so the job can be sent again
+        final ByteBuffer source = data.duplicate();
+        final int chunkSize = this.chunkSize;
+        boolean first = true;
+        while (source.hasRemaining()) {
+            writeFrame(source, Math.min(source.remaining(), chunkSize), resetReadBuffer && first);
+            first = false;
+        }
+    }
 
-        // Now add the data
-        System.arraycopy(sendingData, 0, cmd, header.length + 2, len);
+    /**
+     * Send a job of the batch to the printer in frames, straight from the data of the job.
+     * Before every frame the printer gets time to print the frames sent earlier, until the
+     * bytes it did not print yet fit in the window. A line longer than the window, like raw
+     * instructions without known line ends, is sent once everything before it was printed.
+     *
+     * @param batch Jobs in the batch
+     * @param index Index of the job to send
+     * @param resetReadBuffer Flag if the responses received so far should be discarded
+     * @return False if the printer failed, the jobs that were not printed have been notified
+     * @throws IOException
+     */
+    private boolean print(final List<PrintJob> batch, final int index, final boolean resetReadBuffer) throws IOException {
+        final PrintJob job = batch.get(index);
+        // Read through a view of the data, so the job can be sent again
+        final ByteBuffer source = job.data.duplicate();
+        // Total length of the data we are sending
+        final int length = source.remaining();
+        // Only format the data when debug logging is enabled
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            final byte[] dump = new byte[length];
+            job.data.duplicate().get(dump);
+            Log.d(TAG, "print() - Total Length: " + length);
+            Log.d(TAG, "print() - Data: " + DataTools.byteArrayToHex(dump, true));
+        }
+        final ApiPrintingProgressCallback progressCallback = job.progress;
+        final int start = source.position();
+        final int chunkSize = this.chunkSize;
+        final int window = flowWindow;
+        // Bytes sent since the last frame the printer reports the status of
+        int unconfirmedLength = 0;
+        boolean first = true;
+        while (source.hasRemaining()) {
+            final int frameLength = nextFrameLength(source, chunkSize, job.lineEnds, source.position() - start);
+            if (window > 0 && bytesInFlight + frameLength > window && !unconfirmedFrames.isEmpty()) {
+                flowWaits.incrementAndGet();
+            }
+            while (window > 0 && bytesInFlight + frameLength > window && !unconfirmedFrames.isEmpty()) {
+                if (!awaitFrame(batch)) {
+                    return false;
+                }
+            }
+            writeFrame(source, frameLength, resetReadBuffer && first);
+            first = false;
+            bytesInFlight += frameLength;
+            unconfirmedLength += frameLength;
+            bytesSent.addAndGet(frameLength);
+            framesSent.incrementAndGet();
+            if (endsLine(source, job.lineEnds, source.position() - start)) {
+                unconfirmedFrames.add(new SentFrame(index, unconfirmedLength, !source.hasRemaining()));
+                unconfirmedLength = 0;
+            }
+            if (progressCallback != null) {
+                progressCallback.progress(length - source.remaining(), length);
+            }
+        }
+        return true;
+    }
 
-        // Add the end of data command
-        cmd[cmd.length - 1] = (byte) 0xE3;
+    /**
+     * Get the length of the next frame to send. Frames are cut after the last line end that
+     * fits in the chunk, since the printer only reports the status of frames that end a line.
+     * A line ends at a new line byte that the printer takes as a command, not at one in the
+     * arguments of a command: the dots of an image, the length of a barcode. Those are only
+     * known for text, the line ends of binary instructions are known from encoding them.
+     *
+     * @param source Instructions being sent to the printer
+     * @param chunkSize Maximum number of bytes in the frame
+     * @param lineEnds Offsets right after the line ends, null if every new line byte ends a line
+     * @param offset Offset of the position of the source in the instructions
+     * @return Number of bytes to send in the next frame
+     */
+    private static int nextFrameLength(final ByteBuffer source, final int chunkSize, final int[] lineEnds, final int offset) {
+        final int remaining = source.remaining();
+        if (remaining <= chunkSize) {
+            return remaining;
+        }
+        if (lineEnds != null) {
+            // Last line end that fits in the chunk
+            int index = Arrays.binarySearch(lineEnds, offset + chunkSize);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index >= 0 && lineEnds[index] > offset ? lineEnds[index] - offset : chunkSize;
+        }
+        final int start = source.position();
+        for (int index = start + chunkSize - 1; index >= start; index--) {
+            if (source.get(index) == '\n') {
+                return index - start + 1;
+            }
+        }
+        return chunkSize;
+    }
 
-        // Return the packaged command
-        return cmd;
+    /**
+     * Check if the frame that was just sent ends a line, the printer reports the status of
+     * those frames.
+     *
+     * @param source Instructions being sent to the printer, positioned after the frame
+     * @param lineEnds Offsets right after the line ends, null if every new line byte ends a line
+     * @param offset Offset of the position of the source in the instructions
+     * @return True if the printer reports the status of the frame
+     */
+    private static boolean endsLine(final ByteBuffer source, final int[] lineEnds, final int offset) {
+        if (lineEnds == null) {
+            return source.get(source.position() - 1) == '\n';
+        }
+        return Arrays.binarySearch(lineEnds, offset) >= 0;
     }
 
     /**
-     * Convert an integer into 4 bytes
-     * @param res
-     * @return
+     * Queue an image to be printed. The image is converted to black and white dots and
+     * scaled down to the width of the print head. Converted images are cached by their
+     * content, so printing the same image again skips the conversion.
+     *
+     * The conversion happens on the calling thread, so this should not be called from the
+     * UI thread.
+     *
+     * @param image Image file, in any format Android can decode
+     * @return Future completing once this image was printed
      */
-    private static final byte[] integerToBytes(int res) {
-        byte[] targets = new byte[4];
+    public ApiFuture<Void> printImage(final byte[] image){
+        return queueImage(image, null);
+    }
 
-        targets[0] = (byte) (res & 0xff);
-        targets[1] = (byte) ((res >> 8) & 0xff);
-        targets[2] = (byte) ((res >> 16) & 0xff);
-        targets[3] = (byte) (res >>> 24);
-        return targets;
+    /**
+     * Queue an image to be printed, see {@link #printImage(byte[])}.
+     *
+     * @param image Image file, in any format Android can decode
+     * @param callback Callback notified once this image was printed
+     */
+    public void printImage(final byte[] image, final ApiPrintingCallback callback){
+        whenPrinted(queueImage(image, progressCallback(callback)), callback);
     }
 
-    private void print(final byte[] data) throws IOException {
-        // Total length of the data we are sending
-        final int length = data.length;
-        Log.d(TAG, "print() - Total Length: " + length);
-        Log.d(TAG, "print() - Data: " + DataTools.byteArrayToHex(data, true));
-        final SerialManager serialManager = SerialManager.getInstance();
-        // Buffer for a grouping of data
-        byte[] dataGroup = new byte[MAX_DATA_SIZE];
-        int dataGroupSize = MAX_DATA_SIZE;
-        if(length > MAX_DATA_SIZE){
-            // The number of groups of data we are going to send
-            int numGroups = length / MAX_DATA_SIZE + (length % MAX_DATA_SIZE == 0 ? 0 : 1);
-            Log.d(TAG, "print() - Groups: " + numGroups);
-            for (int index = 0; index < numGroups; index++){
-                // If it is the last group, and the data remaining data does not fit into a full
-                // group, we have to calculate the remaining data to send
-                if(index == numGroups - 1 && (length % MAX_DATA_SIZE != 0)){
-                    dataGroupSize = length % MAX_DATA_SIZE;
-                }
-                Log.d(TAG, "print() - Data Group Size: " + dataGroupSize);
-                System.arraycopy(data, MAX_DATA_SIZE * index, dataGroup, 0, dataGroupSize);
-                Log.d(TAG, "print() - Group Data: " + DataTools.byteArrayToHex(dataGroup, true));
-                serialManager.write(packageData(dataGroup, dataGroupSize));
+    /**
+     * Encode this image and queue it, see {@link #printImage(byte[])}.
+     *
+     * @param image Image file, in any format Android can decode
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once this image was printed
+     */
+    private ApiFuture<Void> queueImage(final byte[] image, final ApiPrintingProgressCallback progress){
+        Log.d(TAG, "printImage()");
+        final String key;
+        try {
+            key = DataTools.byteArrayToHex(MessageDigest.getInstance("SHA-1").digest(image));
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while hashing image", e);
+            return failed(new ApiFailure(ERROR_IO, "IO Error while printing"));
+        }
+
+        byte[] data = imageCache.get(key);
+        if (data == null) {
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
+            if (bitmap == null) {
+                Log.i(TAG, "Image could not be decoded");
+                return failed(new ApiFailure(ERROR_IO, "Invalid image"));
             }
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            final int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            bitmap.recycle();
+            data = RasterEncoder.encode(pixels, width, height);
+            imageCache.put(key, data);
+        }
+        return queue(data, RasterEncoder.lineEnds(data), progress);
+    }
 
+    /**
+     * Queue a barcode to be printed, the printer draws the barcode with the text below it.
+     *
+     * @param text Text of the barcode
+     * @param type Type of the barcode, one of the BARCODE constants
+     * @return Future completing once this barcode was printed
+     */
+    public ApiFuture<Void> printBarcode(final String text, final int type){
+        return queueBarcode(text, type, null);
+    }
+
+    /**
+     * Queue a barcode to be printed, see {@link #printBarcode(String, int)}.
+     *
+     * @param text Text of the barcode
+     * @param type Type of the barcode, one of the BARCODE constants
+     * @param callback Callback notified once this barcode was printed
+     */
+    public void printBarcode(final String text, final int type, final ApiPrintingCallback callback){
+        whenPrinted(queueBarcode(text, type, progressCallback(callback)), callback);
+    }
+
+    /**
+     * Encode this barcode and queue it, see {@link #printBarcode(String, int)}.
+     *
+     * @param text Text of the barcode
+     * @param type Type of the barcode, one of the BARCODE constants
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once this barcode was printed
+     */
+    private ApiFuture<Void> queueBarcode(final String text, final int type, final ApiPrintingProgressCallback progress){
+        Log.d(TAG, "printBarcode()");
+        // CODE128 starts with the code set, code set B covers all the printable characters
+        final String barcodeText = type == BARCODE_CODE128 ? "{B" + text : text;
+        final byte[] textData;
+        try {
+            textData = barcodeText.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Exception while encoding barcode", e);
+            return failed(new ApiFailure(ERROR_IO, "IO Error while printing"));
+        }
+        if (text.isEmpty() || textData.length > 255) {
+            return failed(new ApiFailure(ERROR_IO, "Invalid barcode length: " + text.length()));
+        }
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(textData.length + 16);
+        data.write(CMD_BARCODE_TEXT_BELOW, 0, CMD_BARCODE_TEXT_BELOW.length);
+        data.write(CMD_BARCODE_HEIGHT, 0, CMD_BARCODE_HEIGHT.length);
+        data.write(CMD_BARCODE_WIDTH, 0, CMD_BARCODE_WIDTH.length);
+        data.write(CMD_BARCODE, 0, CMD_BARCODE.length);
+        data.write(type);
+        data.write(textData.length);
+        data.write(textData, 0, textData.length);
+        data.write('\n');
+        // The printer reports the status once it printed the code
+        return queue(data.toByteArray(), new int[] { data.size() }, progress);
+    }
+
+    /**
+     * Queue a QR code to be printed, the printer draws the QR code itself.
+     *
+     * @param text Text of the QR code
+     * @param moduleSize Size in dots of the squares of the QR code, from 1 to 16
+     * @return Future completing once this QR code was printed
+     */
+    public ApiFuture<Void> printQrCode(final String text, final int moduleSize){
+        return queueQrCode(text, moduleSize, null);
+    }
+
+    /**
+     * Queue a QR code to be printed, see {@link #printQrCode(String, int)}.
+     *
+     * @param text Text of the QR code
+     * @param moduleSize Size in dots of the squares of the QR code, from 1 to 16
+     * @param callback Callback notified once this QR code was printed
+     */
+    public void printQrCode(final String text, final int moduleSize, final ApiPrintingCallback callback){
+        whenPrinted(queueQrCode(text, moduleSize, progressCallback(callback)), callback);
+    }
+
+    /**
+     * Encode this QR code and queue it, see {@link #printQrCode(String, int)}.
+     *
+     * @param text Text of the QR code
+     * @param moduleSize Size in dots of the squares of the QR code, from 1 to 16
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once this QR code was printed
+     */
+    private ApiFuture<Void> queueQrCode(final String text, final int moduleSize, final ApiPrintingProgressCallback progress){
+        Log.d(TAG, "printQrCode()");
+        final byte[] textData;
+        try {
+            textData = text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Exception while encoding QR code", e);
+            return failed(new ApiFailure(ERROR_IO, "IO Error while printing"));
+        }
+        if (textData.length == 0 || textData.length > MAX_QR_CODE_LENGTH) {
+            return failed(new ApiFailure(ERROR_IO, "Invalid QR code length: " + textData.length));
+        }
+
+        final int storeLength = textData.length + 3;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(textData.length + 48);
+        data.write(CMD_QR_MODEL, 0, CMD_QR_MODEL.length);
+        data.write(CMD_QR_SIZE, 0, CMD_QR_SIZE.length);
+        data.write(Math.min(Math.max(moduleSize, 1), 16));
+        data.write(CMD_QR_ERROR_CORRECTION, 0, CMD_QR_ERROR_CORRECTION.length);
+        data.write(CMD_QR_STORE, 0, CMD_QR_STORE.length);
+        data.write(storeLength & 0xff);
+        data.write(storeLength >> 8);
+        data.write(0x31);
+        data.write(0x50);
+        data.write(0x30);
+        data.write(textData, 0, textData.length);
+        data.write(CMD_QR_PRINT, 0, CMD_QR_PRINT.length);
+        data.write('\n');
+        // The printer reports the status once it printed the code
+        return queue(data.toByteArray(), new int[] { data.size() }, progress);
+    }
+
+    /**
+     * Queue printer instructions to be sent as they are, without any encoding. The bytes
+     * between the position and the limit of the buffer are framed straight from the buffer,
+     * so it must not be changed until the instructions were printed.
+     *
+     * The printer only reports the status once it received the end of a line, when the
+     * instructions do not end with a new line one is added, which copies the instructions.
+     * New line bytes inside the instructions may be arguments of commands, so the printer is
+     * only waited for at the end of the instructions. Instructions larger than the flow window
+     * are sent once everything queued before them was printed, queue them in parts ending
+     * with a new line to have them paced.
+     *
+     * @param data Instructions for the printer
+     * @return Future completing once the instructions were printed
+     */
+    public ApiFuture<Void> printRaw(final ByteBuffer data){
+        return queueRaw(data, null);
+    }
+
+    /**
+     * Queue printer instructions to be printed, see {@link #printRaw(ByteBuffer)}.
+     *
+     * @param data Instructions for the printer
+     * @param callback Callback notified once the instructions were printed
+     */
+    public void printRaw(final ByteBuffer data, final ApiPrintingCallback callback){
+        whenPrinted(queueRaw(data, progressCallback(callback)), callback);
+    }
+
+    /**
+     * Queue the instructions, see {@link #printRaw(ByteBuffer)}.
+     *
+     * @param data Instructions for the printer
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once the instructions were printed
+     */
+    private ApiFuture<Void> queueRaw(final ByteBuffer data, final ApiPrintingProgressCallback progress){
+        Log.d(TAG, "printRaw()");
+        final int length = data.remaining();
+        if (length == 0) {
+            return failed(new ApiFailure(ERROR_IO, "Nothing to print"));
+        }
+        if (data.get(data.limit() - 1) == '\n') {
+            return queue(data.slice(), new int[] { length }, progress);
         }
-        else{
-            serialManager.write(packageData(data));
+        final ByteBuffer terminated = ByteBuffer.allocate(length + 1);
+        terminated.put(data.duplicate());
+        terminated.put((byte) '\n');
+        terminated.flip();
+        return queue(terminated, new int[] { length + 1 }, progress);
+    }
+
+    /**
+     * Compile a receipt layout, and keep it to print receipts with later on. A template
+     * compiled with the same id replaces the previous one.
+     *
+     * @param id Id of the template
+     * @param layout Lines of the receipt, see {@link ReceiptTemplate}
+     * @return The compiled template
+     * @throws IllegalArgumentException If the layout is not valid
+     */
+    public ReceiptTemplate compileTemplate(final String id, final JSONArray layout){
+        Log.d(TAG, "compileTemplate() - " + id);
+        final ReceiptTemplate template = ReceiptTemplate.compile(layout);
+        templates.put(id, template);
+        return template;
+    }
+
+    /**
+     * Queue a receipt to be printed from a compiled template.
+     *
+     * @param id Id of the template
+     * @param values Values of the fields of the template
+     * @return Future completing once the receipt was printed
+     */
+    public ApiFuture<Void> printTemplate(final String id, final Map<String, String> values){
+        return queueTemplate(id, values, null);
+    }
+
+    /**
+     * Queue a receipt to be printed, see {@link #printTemplate(String, Map)}.
+     *
+     * @param id Id of the template
+     * @param values Values of the fields of the template
+     * @param callback Callback notified once the receipt was printed
+     */
+    public void printTemplate(final String id, final Map<String, String> values, final ApiPrintingCallback callback){
+        whenPrinted(queueTemplate(id, values, progressCallback(callback)), callback);
+    }
+
+    /**
+     * Encode the receipt and queue it, see {@link #printTemplate(String, Map)}.
+     *
+     * @param id Id of the template
+     * @param values Values of the fields of the template
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once the receipt was printed
+     */
+    private ApiFuture<Void> queueTemplate(final String id, final Map<String, String> values, final ApiPrintingProgressCallback progress){
+        Log.d(TAG, "printTemplate() - " + id);
+        final ReceiptTemplate template = templates.get(id);
+        if (template == null) {
+            return failed(new ApiFailure(ERROR_IO, "Unknown template: " + id));
         }
+        return queue(template.fill(values), null, progress);
+    }
+
+    /**
+     * Queue text to be printed. Texts queued while the printer is busy are sent to the
+     * printer together as soon as it is free.
+     *
+     * @param text Text to print
+     * @return Future completing once this text was printed
+     */
+    public ApiFuture<Void> printText(final String text){
+        return queueText(text, null);
     }
 
+    /**
+     * Queue text to be printed, see {@link #printText(String)}.
+     *
+     * @param text Text to print
+     * @param callback Callback notified once this text was printed
+     */
     public void printText(final String text, final ApiPrintingCallback callback){
-        Log.d(TAG, "printing() - text: " + text);
+        whenPrinted(queueText(text, progressCallback(callback)), callback);
+    }
+
+    /**
+     * Encode this text and queue it, see {@link #printText(String)}.
+     *
+     * @param text Text to print
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once this text was printed
+     */
+    private ApiFuture<Void> queueText(final String text, final ApiPrintingProgressCallback progress){
         // Printing must end with a new line
         final String printingText = text.endsWith("\n") ? text : text + "\n";
-        Log.d(TAG, "printing() - printingText: " + printingText);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "printing() - printingText: " + printingText);
+        }
+
+        final byte[] data;
+        try {
+            data = printingText.getBytes("GBK");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Exception while encoding text", e);
+            return failed(new ApiFailure(ERROR_IO, "IO Error while printing"));
+        }
 
         Log.d(TAG, "printText()");
-        executorService.execute(new Runnable() {
+        return queue(data, null, progress);
+    }
+
+    /**
+     * Queue printer instructions, and make sure the queue gets printed.
+     *
+     * @param data Instructions for the printer, must end with a new line
+     * @param lineEnds Offsets right after the line ends in the data, null if every new line
+     *                 byte in the data is the end of a line of text
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once the instructions were printed
+     */
+    private ApiFuture<Void> queue(final byte[] data, final int[] lineEnds, final ApiPrintingProgressCallback progress){
+        return queue(ByteBuffer.wrap(data), lineEnds, progress);
+    }
+
+    /**
+     * Queue printer instructions, and make sure the queue gets printed. The future
+     * completes on the thread of the printer. Cancelling it takes the job out of the queue,
+     * or when the job is already being printed stops the batch like {@link #cancel(ApiCallback)}.
+     *
+     * @param data Instructions for the printer, must end with a new line
+     * @param lineEnds Offsets right after the line ends in the data, relative to its position
+     *                 and in ascending order, the last one being the end of the data. Null if
+     *                 every new line byte in the data is the end of a line of text
+     * @param progress Callback told how far the job was sent, null if not needed
+     * @return Future completing once the instructions were printed
+     */
+    private ApiFuture<Void> queue(final ByteBuffer data, final int[] lineEnds, final ApiPrintingProgressCallback progress){
+        final PrintJob job = new PrintJob(data, lineEnds, progress);
+        job.future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                cancel(job);
+            }
+        });
+        jobQueue.add(job);
+        SerialScheduler.getInstance().submit(SerialManager.SerialInterface.PRINTER, SerialScheduler.PRIORITY_NORMAL, new Runnable() {
             @Override
             public void run() {
-                cancelled = false;
-                Log.d(TAG, "printing()");
-                final SerialManager serialManager = SerialManager.getInstance();
-                try {
-                    final boolean wasOpen = serialManager.openSerialPort(SerialManager.SerialInterface.PRINTER);
-
-                    // Give the serial port time to settle before start writing
-                    if(!wasOpen) {
-                        SystemClock.sleep(500);
-                        Log.d(TAG, "Setting default alignment");
-                        serialManager.write(packageData(CMD_ALIGN));
-                        SystemClock.sleep(200);
-                    }
-                    // Package and write the commands to the serial port
-                    print(printingText.getBytes("GBK"));
-
-                    // The printer almost immediately return a 0x02, and only when it is completed
-                    // does it return the 0x08
-                    final long startTime = System.currentTimeMillis();
-                    final int MAX_PRINTING_TIME = 30000; // 30 seconds max time to print the text
-                    int readSize = serialManager.getReadBufferSize();
-                    boolean isDone = false;
-                    while(  // There is still more time allowed to wait for the response
-                            System.currentTimeMillis() - startTime < MAX_PRINTING_TIME &&
-                                    // We received the 2 bytes we are waiting for
-                                    !isDone) {
-
-                        readSize = serialManager.getReadBufferSize();
-                        if(readSize >= 2) {
-                            isDone = true;
-                            final byte[] readBuffer = serialManager.getReadBuffer();
-                            if (readBuffer[0] == 2) {
-                                if (readBuffer[1] == 1) {
-                                    Log.i(TAG, "Printer out of paper");
-                                    callback.failed(new ApiFailure(1, "Printer out of paper"));
-                                } else if (readBuffer[1] == 4) {
-                                    Log.i(TAG, "Printer too hot");
-                                    callback.failed(new ApiFailure(1, "Printer too hot"));
-                                } else if (readBuffer[1] == 8) {
-                                    Log.i(TAG, "Success printing");
-                                    callback.success();
-                                }
-                            } else {
-                                String returnCode = DataTools.byteArrayToHex(readBuffer, readSize, true);
-                                Log.i(TAG, "Unexpected return code" + returnCode);
-                                serialManager.closeSerialPort();
-                                callback.failed(new ApiFailure(ERROR_IO, "Unknown printing response code : " + returnCode));
-                            }
-                        }
-                    }
-                    // If we got here without being done, we timed out waiting for a response
-                    if(!isDone) {
-                        String returnCode = DataTools.byteArrayToHex(serialManager.getReadBuffer(), readSize, true);
-                        Log.i(TAG, "Unexpected return code" + returnCode);
-                        callback.failed(new ApiFailure(ERROR_TIMEOUT, "Unknown printing response code : " + returnCode));
-                    }
-                } catch (IOException e) {
-                    if(cancelled){
-                        Log.i(TAG, "Printing got cancelled");
-                        callback.failed(new ApiFailure(ERROR_CANCELLED, "Cancelled printing"));
-                    }
-                    else{
-                        Log.e(TAG, "Exception while printing", e);
-                        serialManager.closeSerialPort();
-                        callback.failed(new ApiFailure(ERROR_IO, "IO Error while printing"));
-                    }
+                printQueuedJobs();
+            }
+        });
+        return job.future;
+    }
+
+    /**
+     * Stop a job whose future got cancelled.
+     *
+     * @param job Job that got cancelled
+     */
+    private void cancel(final PrintJob job) {
+        synchronized (jobQueue) {
+            if (!jobQueue.remove(job) && job.deadline != null) {
+                job.deadline.cancel();
+            }
+        }
+    }
+
+    /**
+     * Notify a printing callback once a job was printed.
+     *
+     * @param future Future of the job
+     * @param callback Callback notified once the job was printed
+     */
+    private static void whenPrinted(final ApiFuture<Void> future, final ApiPrintingCallback callback) {
+        future.whenComplete(new ApiCallback<Void>() {
+            @Override
+            public void success(Void parameter) {
+                callback.success();
+            }
+
+            @Override
+            public void failed(ApiFailure failure) {
+                callback.failed(failure);
+            }
+        });
+    }
+
+    /**
+     * @param callback Printing callback
+     * @return The callback if it is told how far the job was sent, null otherwise
+     */
+    private static ApiPrintingProgressCallback progressCallback(final ApiPrintingCallback callback) {
+        return callback instanceof ApiPrintingProgressCallback ? (ApiPrintingProgressCallback) callback : null;
+    }
+
+    /**
+     * Print all the queued jobs. Jobs are taken from the queue in batches, the jobs of a
+     * batch are written to the printer as a single stream and the status responses of the
+     * printer are matched to the jobs in the order they were sent.
+     */
+    private void printQueuedJobs() {
+        List<PrintJob> batch = new ArrayList<PrintJob>();
+        takeBatch(batch);
+        // The jobs were already printed by an earlier batch
+        if (batch.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "printing()");
+        // None of the jobs completed yet when opening the printer fails
+        completedJobs = 0;
+        try {
+            final boolean wasOpen = serialManager.openSerialPort();
+            serialManager.setFrameParser(STATUS_PARSER);
+
+            // Wait for the printer to settle before start writing
+            if(!wasOpen) {
+                serialManager.awaitReady(READY_PROBE, serialManager.getProfile().getSettleTime());
+                Log.d(TAG, "Setting default alignment");
+                writeFrame(CMD_ALIGN, 0, CMD_ALIGN.length, true);
+                serialManager.awaitReady(READY_PROBE, ALIGN_TIME);
+            }
+
+            // Keep printing while more jobs get queued
+            while (!batch.isEmpty()) {
+                Log.d(TAG, "Printing batch of " + batch.size() + " jobs");
+                if (!printBatch(batch)) {
+                    // The printer is in an unknown state, leave the queued jobs for the next batch
+                    break;
                 }
-                finally{
+                batch = new ArrayList<PrintJob>();
+                takeBatch(batch);
+            }
+        } catch (IOException e) {
+            final ApiFailure failure;
+            if(batchDeadline.isCancelled()){
+                Log.i(TAG, "Printing got cancelled");
+                // The printer may be left halfway a command, start over with a fresh printer
+                serialManager.closeSerialPort();
+                failure = new ApiFailure(ERROR_CANCELLED, "Cancelled printing");
+            }
+            else{
+                Log.e(TAG, "Exception while printing", e);
+                serialManager.closeSerialPort();
+                failure = new ApiFailure(ERROR_IO, "IO Error while printing");
+            }
+            failJobs(batch, completedJobs, failure);
+        }
+        finally{
+            serialManager.releaseSerialPort();
+        }
+    }
+
+    /**
+     * Take the queued jobs, to print them under the current deadline.
+     *
+     * @param batch List receiving the jobs
+     */
+    private void takeBatch(final List<PrintJob> batch) {
+        synchronized (jobQueue) {
+            // Jobs queued after printing was cancelled are printed as usual
+            if (printDeadline.isCancelled()) {
+                printDeadline = new Deadline();
+            }
+            batchDeadline = printDeadline;
+            jobQueue.drainTo(batch);
+            for (PrintJob job : batch) {
+                job.deadline = batchDeadline;
+            }
+        }
+    }
+
+    /**
+     * Write the commands of all the jobs in the batch to the printer as a single stream,
+     * and notify the callbacks of the jobs once the printer reported their status.
+     *
+     * @param batch Jobs to print
+     * @return True if all the jobs printed successfully
+     * @throws IOException
+     */
+    private boolean printBatch(final List<PrintJob> batch) throws IOException {
+        unconfirmedFrames.clear();
+        bytesInFlight = 0;
+        completedJobs = 0;
+        for (int index = 0; index < batch.size(); index++) {
+            if (!print(batch, index, index == 0)) {
+                return false;
+            }
+        }
+        while (!unconfirmedFrames.isEmpty()) {
+            if (!awaitFrame(batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the printer to report the status of the oldest frame it did not report yet,
+     * and notify the callback of the job once its last frame was printed.
+     *
+     * The printer almost immediately returns a 0x02 when it receives a frame that ends
+     * with a new line, and only when the frame is printed does it return the status.
+     *
+     * @param batch Jobs in the batch
+     * @return False if the printer failed, the jobs that were not printed have been notified
+     */
+    private boolean awaitFrame(final List<PrintJob> batch) {
+        while (true) {
+            // Block until the printer responded
+            if (serialManager.readFrame(statusResponse, MAX_PRINTING_TIME, 0, batchDeadline) == 0) {
+                if (batchDeadline.isCancelled()) {
+                    Log.i(TAG, "Printing got cancelled");
+                    // The printer may be left halfway a command, start over with a fresh printer
                     serialManager.closeSerialPort();
+                    failJobs(batch, completedJobs, new ApiFailure(ERROR_CANCELLED, "Cancelled printing"));
+                    return false;
                 }
+                Log.i(TAG, "Timeout waiting for the printer status");
+                failJobs(batch, completedJobs, new ApiFailure(ERROR_TIMEOUT, "Timeout waiting for the printer status"));
+                return false;
             }
-        });
+            final byte status = statusResponse[0];
+            if (status == STATUS_RECEIVED || (status & STATUS_REQUEST_MASK) == STATUS_REQUEST_ANSWER) {
+                // Neither the receipt of a frame nor a late answer to the readiness handshake is a printing status
+                continue;
+            }
+            final SentFrame frame = unconfirmedFrames.poll();
+            if (status == STATUS_DONE) {
+                bytesInFlight -= frame.length;
+                frameTime.recordSince(frame.sentAt);
+                if (frame.last) {
+                    Log.i(TAG, "Success printing");
+                    final PrintJob job = batch.get(frame.jobIndex);
+                    jobsPrinted.incrementAndGet();
+                    jobTime.recordSince(job.queuedAt);
+                    job.future.success(null);
+                    completedJobs++;
+                }
+                return true;
+            }
+
+            final ApiFailure failure;
+            if (status == STATUS_OUT_OF_PAPER) {
+                Log.i(TAG, "Printer out of paper");
+                failure = new ApiFailure(1, "Printer out of paper");
+            } else if (status == STATUS_TOO_HOT) {
+                Log.i(TAG, "Printer too hot");
+                failure = new ApiFailure(1, "Printer too hot");
+            } else {
+                String returnCode = DataTools.byteArrayToHex(statusResponse, true);
+                Log.i(TAG, "Unexpected return code" + returnCode);
+                failure = new ApiFailure(ERROR_IO, "Unknown printing response code : " + returnCode);
+            }
+            // The printer stops printing, none of the remaining jobs will be printed
+            serialManager.closeSerialPort();
+            failJobs(batch, completedJobs, failure);
+            return false;
+        }
+    }
+
+    /**
+     * Notify the callbacks of jobs that they failed.
+     *
+     * @param batch Jobs in the batch
+     * @param fromIndex Index of the first job that failed
+     * @param failure Reason the jobs failed
+     */
+    private static void failJobs(final List<PrintJob> batch, final int fromIndex, final ApiFailure failure) {
+        for (int index = fromIndex; index < batch.size(); index++) {
+            final PrintJob job = batch.get(index);
+            Metrics.getInstance().recordFailure("printer", failure);
+            job.future.failed(failure);
+        }
+    }
+
+    /**
+     * Fail a job before it was queued, and count the failure.
+     *
+     * @param failure Reason the job failed
+     * @return Future of the job that failed
+     */
+    private static ApiFuture<Void> failed(final ApiFailure failure) {
+        Metrics.getInstance().recordFailure("printer", failure);
+        return ApiFuture.failure(failure);
+    }
+
+    /**
+     * Instructions waiting to be printed.
+     */
+    private static class PrintJob {
+
+        private final ByteBuffer data;
+        private final ApiFuture<Void> future = new ApiFuture<Void>();
+
+        /**
+         * Offsets right after the line ends in the data, relative to its position, in
+         * ascending order. Null if every new line byte in the data is the end of a line of
+         * text. Binary instructions hold arguments that may contain the new line byte, their
+         * line ends are the ones known from encoding them.
+         */
+        private final int[] lineEnds;
+
+        /**
+         * Callback told how far the job was sent, null if not needed.
+         */
+        private final ApiPrintingProgressCallback progress;
 
+        /**
+         * Deadline of the batch printing the job, null while it is queued. Guarded by the
+         * job queue.
+         */
+        private Deadline deadline;
 
+        /**
+         * Time the job was queued, from {@link System#nanoTime()}.
+         */
+        private final long queuedAt = System.nanoTime();
+
+        PrintJob(ByteBuffer data, int[] lineEnds, ApiPrintingProgressCallback progress) {
+            this.data = data;
+            this.lineEnds = lineEnds;
+            this.progress = progress;
+        }
+    }
+
+    /**
+     * Frame sent to the printer that the printer reports the status of.
+     */
+    private static class SentFrame {
+
+        /**
+         * Index of the job in the batch.
+         */
+        private final int jobIndex;
+
+        /**
+         * Number of bytes printed once the printer reports the status, including the
+         * frames before it the printer does not report.
+         */
+        private final int length;
+
+        /**
+         * Flag if this is the last frame of the job.
+         */
+        private final boolean last;
+
+        /**
+         * Time the frame was sent, from {@link System#nanoTime()}.
+         */
+        private final long sentAt = System.nanoTime();
+
+        SentFrame(int jobIndex, int length, boolean last) {
+            this.jobIndex = jobIndex;
+            this.length = length;
+            this.last = last;
+        }
     }
 }
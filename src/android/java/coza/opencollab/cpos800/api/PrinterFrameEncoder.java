@@ -0,0 +1,118 @@
+package coza.opencollab.cpos800.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packages instructions for the printer into frames, reusing a single frame buffer.
+ *
+ * A frame is the 0xCA 0xDF 0x00 0x35 header, the data length in 2 bytes, the data and
+ * the 0xE3 end of data marker. The header never changes so it is only written once,
+ * encoding a frame only copies the data slice and sets the length and trailer. Frames
+ * sent with a gathering write are not assembled at all, the data is sent from where it is.
+ *
+ * Not thread safe, the frame buffers are overwritten by every call to encode or gather.
+ */
+class PrinterFrameEncoder {
+
+    /**
+     * Header that starts every frame.
+     */
+    private static final byte[] HEADER = { (byte) 0xCA, (byte) 0xDF, (byte) 0x00, (byte) 0x35 };
+
+    /**
+     * End of data marker.
+     */
+    private static final byte TRAILER = (byte) 0xE3;
+
+    /**
+     * Number of bytes in a frame that are not data.
+     */
+    static final int FRAME_OVERHEAD = HEADER.length + 2 + 1;
+
+    /**
+     * Reusable frame buffer.
+     */
+    private final byte[] frame;
+
+    /**
+     * Header and data length of a gathered frame.
+     */
+    private final ByteBuffer gatherHeader = ByteBuffer.allocateDirect(HEADER.length + 2);
+
+    /**
+     * Trailer of a gathered frame.
+     */
+    private final ByteBuffer gatherTrailer = ByteBuffer.allocateDirect(1);
+
+    /**
+     * Parts of a gathered frame.
+     */
+    private final ByteBuffer[] gatherParts = new ByteBuffer[3];
+
+    /**
+     * @param maxDataSize Maximum number of data bytes in a single frame.
+     */
+    PrinterFrameEncoder(int maxDataSize) {
+        frame = new byte[maxDataSize + FRAME_OVERHEAD];
+        System.arraycopy(HEADER, 0, frame, 0, HEADER.length);
+        gatherHeader.put(HEADER);
+        gatherTrailer.put(0, TRAILER);
+        gatherParts[0] = gatherHeader;
+        gatherParts[2] = gatherTrailer;
+    }
+
+    /**
+     * @return Maximum number of data bytes in a single frame.
+     */
+    int getMaxDataSize() {
+        return frame.length - FRAME_OVERHEAD;
+    }
+
+    /**
+     * Encode a slice of data into the frame buffer.
+     * @param data Instructions being sent to the printer.
+     * @param offset Offset of the first byte to send.
+     * @param length Number of bytes to send.
+     * @return Length of the frame in {@link #getFrame()}.
+     */
+    int encode(byte[] data, int offset, int length) {
+        if (length > getMaxDataSize()) {
+            throw new IllegalArgumentException("Data does not fit in a single frame: " + length);
+        }
+        // Length is sent with the most significant byte first
+        frame[HEADER.length] = (byte) ((length >> 8) & 0xff);
+        frame[HEADER.length + 1] = (byte) (length & 0xff);
+        System.arraycopy(data, offset, frame, HEADER.length + 2, length);
+        frame[HEADER.length + 2 + length] = TRAILER;
+        return length + FRAME_OVERHEAD;
+    }
+
+    /**
+     * Frame the next bytes of a buffer for a gathering write, without copying them.
+     * @param data Instructions being sent to the printer, the position is moved past the
+     *             bytes that were framed.
+     * @param length Number of bytes to send.
+     * @return The header, the data and the trailer of the frame, valid until the next call.
+     */
+    ByteBuffer[] gather(ByteBuffer data, int length) {
+        if (length > getMaxDataSize()) {
+            throw new IllegalArgumentException("Data does not fit in a single frame: " + length);
+        }
+        gatherHeader.put(HEADER.length, (byte) ((length >> 8) & 0xff));
+        gatherHeader.put(HEADER.length + 1, (byte) (length & 0xff));
+        gatherHeader.clear();
+        gatherTrailer.clear();
+        final ByteBuffer slice = data.duplicate();
+        slice.limit(slice.position() + length);
+        data.position(data.position() + length);
+        gatherParts[1] = slice;
+        return gatherParts;
+    }
+
+    /**
+     * @return The frame buffer, valid up to the length returned by the last encode.
+     */
+    byte[] getFrame() {
+        return frame;
+    }
+}
@@ -0,0 +1,85 @@
+package coza.opencollab.cpos800.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of encoded images, limited by the total size of the encoded
+ * images it holds.
+ */
+class RasterCache {
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final long maxSize;
+    private long size = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * @param maxSize Maximum total size in bytes of the cached images.
+     */
+    RasterCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a cached image.
+     * @param key Content hash of the source image.
+     * @return The encoded image, or null if it is not cached.
+     */
+    synchronized byte[] get(String key) {
+        final byte[] value = entries.get(key);
+        if (value == null) {
+            missCount++;
+        }
+        else {
+            hitCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Cache an image, evicting the least recently used images when the cache is full.
+     * Images larger than the cache are not cached.
+     * @param key Content hash of the source image.
+     * @param value The encoded image.
+     */
+    synchronized void put(String key, byte[] value) {
+        if (value.length > maxSize) {
+            return;
+        }
+        final byte[] previous = entries.put(key, value);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += value.length;
+        final Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, byte[]> eldest = iterator.next();
+            size -= eldest.getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return Total size in bytes of the cached images.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Number of times a cached image was found.
+     */
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return Number of times an image was not cached.
+     */
+    synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,168 @@
+package coza.opencollab.cpos800.api;
+
+import java.util.Arrays;
+
+/**
+ * Converts images to the raster bit image command of the printer (GS v 0).
+ *
+ * The pixels are converted to grey, dithered to black and white with Floyd-Steinberg error
+ * diffusion and packed 8 dots to a byte, in a single pass over the image that only keeps the
+ * diffusion errors of two rows. Images wider than the print head are scaled down.
+ *
+ * The image is printed in bands of rows, each its own raster command ending with a new line
+ * at a line spacing of 0 dots. The printer reports the status of every band once it printed
+ * it, so a large image can be paced like text.
+ */
+class RasterEncoder {
+
+    /**
+     * Number of dots of the print head.
+     */
+    static final int MAX_WIDTH = 384;
+
+    /**
+     * Raster bit image command, followed by the mode, the width in bytes and the height in dots.
+     */
+    private static final byte[] CMD_RASTER = { 0x1D, 0x76, 0x30, 0x00 };
+
+    /**
+     * Set the line spacing to 0 dots, so the new lines between the bands do not feed paper.
+     */
+    private static final byte[] CMD_NO_LINE_SPACING = { 0x1B, 0x33, 0x00 };
+
+    /**
+     * Restore the default line spacing.
+     */
+    private static final byte[] CMD_DEFAULT_LINE_SPACING = { 0x1B, 0x32 };
+
+    /**
+     * Number of rows of a band, the height of a line of text.
+     */
+    static final int BAND_HEIGHT = 24;
+
+    /**
+     * Grey level from which a dot is left white.
+     */
+    private static final int THRESHOLD = 128;
+
+    private RasterEncoder() {
+    }
+
+    /**
+     * Encode an image as printer commands.
+     * @param pixels Pixels of the image in ARGB, row by row.
+     * @param width Width of the image.
+     * @param height Height of the image.
+     * @return The commands printing the image, ending with a new line.
+     * @see #lineEnds(byte[])
+     */
+    static byte[] encode(final int[] pixels, final int width, final int height) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        // Scale the image down to the width of the print head
+        final int targetWidth = Math.min(width, MAX_WIDTH);
+        final int targetHeight = width == targetWidth ? height : Math.max(1, (int) ((long) height * targetWidth / width));
+        final int bytesPerRow = (targetWidth + 7) >> 3;
+        final int bands = (targetHeight + BAND_HEIGHT - 1) / BAND_HEIGHT;
+
+        final byte[] commands = new byte[CMD_NO_LINE_SPACING.length
+                + bands * (CMD_RASTER.length + 4 + 1) + bytesPerRow * targetHeight
+                + CMD_DEFAULT_LINE_SPACING.length];
+        System.arraycopy(CMD_NO_LINE_SPACING, 0, commands, 0, CMD_NO_LINE_SPACING.length);
+        int position = CMD_NO_LINE_SPACING.length;
+
+        // Diffusion errors of the current and the next row, with a column of margin on both sides
+        int[] errors = new int[targetWidth + 2];
+        int[] nextErrors = new int[targetWidth + 2];
+        for (int y = 0; y < targetHeight; y++) {
+            if (y % BAND_HEIGHT == 0) {
+                if (y > 0) {
+                    commands[position++] = '\n';
+                }
+                final int bandHeight = Math.min(BAND_HEIGHT, targetHeight - y);
+                System.arraycopy(CMD_RASTER, 0, commands, position, CMD_RASTER.length);
+                position += CMD_RASTER.length;
+                commands[position++] = (byte) bytesPerRow;
+                commands[position++] = (byte) (bytesPerRow >> 8);
+                commands[position++] = (byte) bandHeight;
+                commands[position++] = (byte) (bandHeight >> 8);
+            }
+            final int rowOffset = (int) ((long) y * height / targetHeight) * width;
+            int bits = 0;
+            for (int x = 0; x < targetWidth; x++) {
+                final int pixel = pixels[rowOffset + (targetWidth == width ? x : (int) ((long) x * width / targetWidth))];
+                final int grey = grey(pixel) + errors[x + 1] / 16;
+                final int error;
+                bits <<= 1;
+                if (grey < THRESHOLD) {
+                    bits |= 1;
+                    error = grey;
+                }
+                else {
+                    error = grey - 255;
+                }
+                errors[x + 2] += error * 7;
+                nextErrors[x] += error * 3;
+                nextErrors[x + 1] += error * 5;
+                nextErrors[x + 2] += error;
+                if ((x & 7) == 7) {
+                    commands[position++] = (byte) bits;
+                    bits = 0;
+                }
+            }
+            // Pad the last byte of the row with white dots
+            if ((targetWidth & 7) != 0) {
+                commands[position++] = (byte) (bits << (8 - (targetWidth & 7)));
+            }
+            final int[] done = errors;
+            errors = nextErrors;
+            nextErrors = done;
+            Arrays.fill(nextErrors, 0);
+        }
+        // The paper is fed as far as after the last line of text
+        System.arraycopy(CMD_DEFAULT_LINE_SPACING, 0, commands, position, CMD_DEFAULT_LINE_SPACING.length);
+        position += CMD_DEFAULT_LINE_SPACING.length;
+        commands[position] = '\n';
+        return commands;
+    }
+
+    /**
+     * Find the ends of the bands of an encoded image. The new line bytes of an image can
+     * not be told apart from the bytes of the dots, the ends are found by walking the
+     * commands instead.
+     * @param commands The commands printing the image, as encoded by {@link #encode(int[], int, int)}.
+     * @return Offsets right after the new lines ending the bands, in ascending order.
+     */
+    static int[] lineEnds(final byte[] commands) {
+        int[] ends = new int[16];
+        int count = 0;
+        int position = CMD_NO_LINE_SPACING.length;
+        while (commands[position] == CMD_RASTER[0]) {
+            final int bytesPerRow = (commands[position + 4] & 0xff) | (commands[position + 5] & 0xff) << 8;
+            final int bandHeight = (commands[position + 6] & 0xff) | (commands[position + 7] & 0xff) << 8;
+            position += CMD_RASTER.length + 4 + bytesPerRow * bandHeight;
+            if (commands[position] != '\n') {
+                break;
+            }
+            position++;
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ends[count++] = position;
+        }
+        ends = Arrays.copyOf(ends, count + 1);
+        ends[count] = commands.length;
+        return ends;
+    }
+
+    /**
+     * @param pixel Pixel in ARGB.
+     * @return Grey level of the pixel, transparent pixels are white.
+     */
+    private static int grey(final int pixel) {
+        final int alpha = pixel >>> 24;
+        final int luminance = (((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29) >> 8;
+        return 255 - (((255 - luminance) * alpha) >> 8);
+    }
+}
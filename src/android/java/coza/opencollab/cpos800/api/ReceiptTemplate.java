@@ -0,0 +1,447 @@
+package coza.opencollab.cpos800.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receipt layout compiled to printer instructions.
+ *
+ * The layout is a list of lines, every line is an object with these optional properties:
+ * <ul>
+ *     <li>text: Text of the line, {{name}} is replaced by the value of the field name.</li>
+ *     <li>columns: List of columns, instead of text. Every column has a text, a width in
+ *     characters and an align of left, center or right.</li>
+ *     <li>align: left, center or right.</li>
+ *     <li>bold: true to print the line in bold.</li>
+ *     <li>size: Character size from 1 to 8.</li>
+ *     <li>feed: Number of empty lines printed after the line.</li>
+ * </ul>
+ *
+ * Everything but the field values is encoded once when the layout is compiled, filling in the
+ * template only encodes the values and copies the rest.
+ */
+public class ReceiptTemplate {
+
+    /**
+     * Number of characters on a line at size 1.
+     */
+    public static final int LINE_WIDTH = 32;
+
+    private static final String CHARSET = "GBK";
+
+    private static final byte[] CMD_ALIGN = { 0x1B, 0x61 }; // Align, followed by 0 left, 1 center or 2 right
+    private static final byte[] CMD_BOLD = { 0x1B, 0x45 }; // Bold, followed by 1 on or 0 off
+    private static final byte[] CMD_SIZE = { 0x1D, 0x21 }; // Character size, followed by the width and height
+    private static final byte[] CMD_FEED = { 0x1B, 0x64 }; // Feed the paper, followed by the number of lines
+
+    private static final int ALIGN_LEFT = 0;
+    private static final int ALIGN_CENTER = 1;
+    private static final int ALIGN_RIGHT = 2;
+
+    private static final int MAX_SIZE = 8;
+
+    private final Segment[] segments;
+    private final int staticLength;
+
+    /**
+     * Expected length of the text with fields, to size the output.
+     */
+    private final int dynamicLength;
+    private final Set<String> fieldNames;
+
+    private ReceiptTemplate(List<Segment> segments, Set<String> fieldNames) {
+        this.segments = segments.toArray(new Segment[segments.size()]);
+        int length = 0;
+        int dynamic = 0;
+        for (Segment segment : segments) {
+            if (segment.fields == null) {
+                length += segment.bytes.length;
+            }
+            else {
+                dynamic += Math.max(segment.width, 16);
+            }
+        }
+        this.staticLength = length;
+        this.dynamicLength = dynamic;
+        this.fieldNames = Collections.unmodifiableSet(fieldNames);
+    }
+
+    /**
+     * Compile a receipt layout.
+     * @param layout Lines of the receipt.
+     * @return The compiled template.
+     * @throws IllegalArgumentException If the layout is not valid.
+     */
+    public static ReceiptTemplate compile(JSONArray layout) {
+        final Compiler compiler = new Compiler();
+        try {
+            for (int index = 0; index < layout.length(); index++) {
+                compiler.line(index, layout.getJSONObject(index));
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid layout: " + e.getMessage(), e);
+        }
+        return compiler.finish();
+    }
+
+    /**
+     * @return Names of the fields of the template.
+     */
+    public Set<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Fill in the fields of the template.
+     * @param values Values of the fields, missing fields are left empty.
+     * @return Instructions for the printer.
+     */
+    public byte[] fill(Map<String, String> values) {
+        final Output output = new Output(staticLength + dynamicLength);
+        for (Segment segment : segments) {
+            if (segment.fields == null) {
+                output.write(segment.bytes);
+            }
+            else {
+                segment.fill(values, output);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not supported", e);
+        }
+    }
+
+    /**
+     * @param bytes Encoded text.
+     * @param length Length to measure.
+     * @return Number of bytes of the whole characters that fit in the length, GBK characters
+     *         take one or two bytes and as many columns on the printer.
+     */
+    private static int fitLength(byte[] bytes, int length) {
+        return fitLength(bytes, 0, bytes.length, length);
+    }
+
+    /**
+     * @param bytes Buffer holding the encoded text.
+     * @param start Position of the text.
+     * @param end End of the text.
+     * @param length Length to measure.
+     * @return Number of bytes of the whole characters that fit in the length.
+     */
+    private static int fitLength(byte[] bytes, int start, int end, int length) {
+        int position = start;
+        while (position < end) {
+            final int next = position + ((bytes[position] & 0xff) >= 0x81 ? 2 : 1);
+            if (next - start > length) {
+                break;
+            }
+            position = next;
+        }
+        return position - start;
+    }
+
+    /**
+     * Growable array the instructions are assembled in.
+     */
+    private static class Output {
+
+        private byte[] data;
+        private int length = 0;
+
+        Output(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void ensureCapacity(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+
+        void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+
+        /**
+         * Encode text, text that is plain ASCII is copied without going through the charset.
+         */
+        void write(String text) {
+            final int count = text.length();
+            ensureCapacity(count);
+            final byte[] bytes = data;
+            final int start = length;
+            for (int index = 0; index < count; index++) {
+                final char c = text.charAt(index);
+                if (c >= 0x80) {
+                    length = start + index;
+                    write(encode(text.substring(index)));
+                    return;
+                }
+                bytes[start + index] = (byte) c;
+            }
+            length = start + count;
+        }
+
+        /**
+         * Pad or cut the text written since the start to a width.
+         * @param start Position of the text.
+         * @param width Width in characters.
+         * @param align Alignment of the text within the width.
+         */
+        void pad(int start, int width, int align) {
+            final int textLength = fitLength(data, start, length, width);
+            ensureCapacity(width - (length - start));
+            final int offset = align == ALIGN_RIGHT ? width - textLength : align == ALIGN_CENTER ? (width - textLength) / 2 : 0;
+            if (offset > 0) {
+                System.arraycopy(data, start, data, start + offset, textLength);
+                Arrays.fill(data, start, start + offset, (byte) ' ');
+            }
+            Arrays.fill(data, start + offset + textLength, start + width, (byte) ' ');
+            length = start + width;
+        }
+
+        byte[] toByteArray() {
+            return data.length == length ? data : Arrays.copyOf(data, length);
+        }
+    }
+
+    /**
+     * Pad or cut text to a width.
+     * @param text Encoded text.
+     * @param width Width in characters, 0 to leave the text as it is.
+     * @param align Alignment of the text within the width.
+     * @return The text at the width.
+     */
+    private static byte[] pad(byte[] text, int width, int align) {
+        if (width == 0 || text.length == width) {
+            return text;
+        }
+        final int length = fitLength(text, width);
+        final byte[] padded = new byte[width];
+        final int offset = align == ALIGN_RIGHT ? width - length : align == ALIGN_CENTER ? (width - length) / 2 : 0;
+        for (int index = 0; index < width; index++) {
+            padded[index] = ' ';
+        }
+        System.arraycopy(text, 0, padded, offset, length);
+        return padded;
+    }
+
+    /**
+     * Part of the template, either fixed instructions or text with fields.
+     */
+    private static class Segment {
+
+        /**
+         * Fixed instructions, null for text with fields.
+         */
+        private final byte[] bytes;
+
+        /**
+         * Encoded text between the fields, the text before the first field comes first.
+         */
+        private final byte[][] literals;
+
+        /**
+         * Names of the fields, null for fixed instructions.
+         */
+        private final String[] fields;
+
+        private final int width;
+        private final int align;
+
+        Segment(byte[] bytes) {
+            this.bytes = bytes;
+            this.literals = null;
+            this.fields = null;
+            this.width = 0;
+            this.align = ALIGN_LEFT;
+        }
+
+        Segment(byte[][] literals, String[] fields, int width, int align) {
+            this.bytes = null;
+            this.literals = literals;
+            this.fields = fields;
+            this.width = width;
+            this.align = align;
+        }
+
+        void fill(Map<String, String> values, Output output) {
+            final int start = output.length;
+            output.write(literals[0]);
+            for (int index = 0; index < fields.length; index++) {
+                final String value = values.get(fields[index]);
+                if (value != null) {
+                    output.write(value);
+                }
+                output.write(literals[index + 1]);
+            }
+            if (width > 0) {
+                output.pad(start, width, align);
+            }
+        }
+    }
+
+    /**
+     * Compiles the lines of a layout into segments.
+     */
+    private static class Compiler {
+
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private final Set<String> fieldNames = new LinkedHashSet<String>();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        void line(int index, JSONObject line) throws JSONException {
+            final int align = align(index, line.optString("align", "left"));
+            final boolean bold = line.optBoolean("bold", false);
+            final int size = line.optInt("size", 1);
+            if (size < 1 || size > MAX_SIZE) {
+                throw new IllegalArgumentException("Line " + index + ": size must be from 1 to " + MAX_SIZE);
+            }
+            final int feed = line.optInt("feed", 0);
+            if (feed < 0 || feed > 255) {
+                throw new IllegalArgumentException("Line " + index + ": feed must be from 0 to 255");
+            }
+
+            if (align != ALIGN_LEFT) {
+                command(CMD_ALIGN, align);
+            }
+            if (bold) {
+                command(CMD_BOLD, 1);
+            }
+            if (size != 1) {
+                command(CMD_SIZE, (size - 1) << 4 | (size - 1));
+            }
+
+            final JSONArray columns = line.optJSONArray("columns");
+            if (columns != null) {
+                int totalWidth = 0;
+                for (int column = 0; column < columns.length(); column++) {
+                    final JSONObject cell = columns.getJSONObject(column);
+                    final int width = cell.getInt("width");
+                    if (width < 1) {
+                        throw new IllegalArgumentException("Line " + index + ": column " + column + " has no width");
+                    }
+                    totalWidth += width;
+                    text(index, cell.optString("text", ""), width, align(index, cell.optString("align", "left")));
+                }
+                if (totalWidth * size > LINE_WIDTH) {
+                    throw new IllegalArgumentException("Line " + index + ": columns are wider than the line");
+                }
+            }
+            else if (line.has("text")) {
+                text(index, line.getString("text"), 0, ALIGN_LEFT);
+            }
+            if (columns != null || line.has("text")) {
+                pending.write('\n');
+            }
+
+            // Restore the defaults for the next line
+            if (size != 1) {
+                command(CMD_SIZE, 0);
+            }
+            if (bold) {
+                command(CMD_BOLD, 0);
+            }
+            if (align != ALIGN_LEFT) {
+                command(CMD_ALIGN, ALIGN_LEFT);
+            }
+            if (feed == '\n') {
+                // The count would be taken for the end of a line, the frames of a receipt are
+                // cut there, so feed one line less and print an empty line instead
+                command(CMD_FEED, feed - 1);
+                pending.write('\n');
+            }
+            else if (feed > 0) {
+                command(CMD_FEED, feed);
+            }
+        }
+
+        ReceiptTemplate finish() {
+            // The printer only reports the status once it received the end of a line
+            final byte[] last = pending.size() > 0 ? pending.toByteArray() : null;
+            if (last == null || last[last.length - 1] != '\n') {
+                pending.write('\n');
+            }
+            flush();
+            return new ReceiptTemplate(segments, fieldNames);
+        }
+
+        private void command(byte[] command, int parameter) {
+            pending.write(command, 0, command.length);
+            pending.write(parameter);
+        }
+
+        /**
+         * Compile text, text without fields is encoded right away.
+         */
+        private void text(int index, String text, int width, int align) {
+            final List<byte[]> literals = new ArrayList<byte[]>();
+            final List<String> fields = new ArrayList<String>();
+            int position = 0;
+            int start;
+            while ((start = text.indexOf("{{", position)) >= 0) {
+                final int end = text.indexOf("}}", start + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Line " + index + ": unterminated field in \"" + text + "\"");
+                }
+                final String name = text.substring(start + 2, end).trim();
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("Line " + index + ": field without a name in \"" + text + "\"");
+                }
+                literals.add(encode(text.substring(position, start)));
+                fields.add(name);
+                fieldNames.add(name);
+                position = end + 2;
+            }
+            literals.add(encode(text.substring(position)));
+
+            if (fields.isEmpty()) {
+                final byte[] bytes = pad(literals.get(0), width, align);
+                pending.write(bytes, 0, bytes.length);
+                return;
+            }
+            flush();
+            segments.add(new Segment(literals.toArray(new byte[literals.size()][]),
+                    fields.toArray(new String[fields.size()]), width, align));
+        }
+
+        private void flush() {
+            if (pending.size() > 0) {
+                segments.add(new Segment(pending.toByteArray()));
+                pending.reset();
+            }
+        }
+
+        private static int align(int index, String align) {
+            if ("left".equals(align)) {
+                return ALIGN_LEFT;
+            }
+            if ("center".equals(align)) {
+                return ALIGN_CENTER;
+            }
+            if ("right".equals(align)) {
+                return ALIGN_RIGHT;
+            }
+            throw new IllegalArgumentException("Line " + index + ": unknown align " + align);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package coza.opencollab.cpos800.api;
+
+import java.util.Arrays;
+
+/**
+ * Tracks how long a device takes to answer a command, and derives the time to wait for
+ * answers from it.
+ *
+ * The response times of the last commands are kept in a moving window, the read windows are
+ * sized from a high percentile of them so a slow answer now and then is still caught. A
+ * missing answer counts as a response of the full time that was waited, so the windows grow
+ * again when the device slows down.
+ */
+class ResponseTimeTracker {
+
+    /**
+     * Number of response times kept.
+     */
+    private static final int SAMPLES = 32;
+
+    /**
+     * Percentile of the response times used to size the read windows.
+     */
+    private static final int PERCENTILE = 90;
+
+    private final int minimumProcessingTime;
+    private final int maximumProcessingTime;
+    private final int minimumTransmitInterval;
+    private final int maximumTransmitInterval;
+    private final int[] samples = new int[SAMPLES];
+    private final int[] sorted = new int[SAMPLES];
+    private int sampleCount = 0;
+    private int nextSample = 0;
+    private int percentile;
+
+    /**
+     * The upper bounds are used until response times were recorded.
+     * @param minimumProcessingTime Lower bound in milliseconds of the time to wait for an answer.
+     * @param maximumProcessingTime Upper bound in milliseconds of the time to wait for an answer.
+     * @param minimumTransmitInterval Lower bound in milliseconds of the silence ending an answer.
+     * @param maximumTransmitInterval Upper bound in milliseconds of the silence ending an answer.
+     */
+    ResponseTimeTracker(int minimumProcessingTime, int maximumProcessingTime,
+                        int minimumTransmitInterval, int maximumTransmitInterval) {
+        this.minimumProcessingTime = minimumProcessingTime;
+        this.maximumProcessingTime = maximumProcessingTime;
+        this.minimumTransmitInterval = minimumTransmitInterval;
+        this.maximumTransmitInterval = maximumTransmitInterval;
+        this.percentile = maximumProcessingTime;
+    }
+
+    /**
+     * Record the time the device took to answer a command.
+     * @param time Response time in milliseconds.
+     */
+    synchronized void record(long time) {
+        samples[nextSample] = (int) Math.min(Math.max(time, 0), maximumProcessingTime);
+        nextSample = (nextSample + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            sampleCount++;
+        }
+        System.arraycopy(samples, 0, sorted, 0, sampleCount);
+        Arrays.sort(sorted, 0, sampleCount);
+        percentile = sorted[(sampleCount - 1) * PERCENTILE / 100];
+    }
+
+    /**
+     * Record that the device did not answer at all.
+     * @param waited Time in milliseconds that was waited.
+     */
+    void recordMissed(long waited) {
+        record(waited);
+    }
+
+    /**
+     * @return Time in milliseconds to wait for the device to start answering.
+     */
+    synchronized int getProcessingTime() {
+        return Math.min(Math.max(percentile * 2, minimumProcessingTime), maximumProcessingTime);
+    }
+
+    /**
+     * @return Interval of silence in milliseconds after which an answer is complete.
+     */
+    synchronized int getTransmitInterval() {
+        return Math.min(Math.max(percentile / 2, minimumTransmitInterval), maximumTransmitInterval);
+    }
+
+    /**
+     * @return Response time in milliseconds the read windows are sized from.
+     */
+    synchronized int getPercentile() {
+        return percentile;
+    }
+}
@@ -1,10 +1,19 @@
 package coza.opencollab.cpos800.cordova;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.util.Base64;
 import android.util.Log;
 import android.content.ActivityNotFoundException;
 import android.content.Intent;
@@ -13,10 +22,14 @@ import android.webkit.MimeTypeMap;
 
 import coza.opencollab.cpos800.api.NfcApi;
 import coza.opencollab.cpos800.api.PrinterApi;
+import coza.opencollab.cpos800.api.ReceiptTemplate;
+import coza.opencollab.cpos800.serial.PortProfile;
+import coza.opencollab.cpos800.serial.SerialManager;
+import coza.opencollab.cpos800.serial.SerialPortRegistry;
 import coza.opencollab.cpos800.DataTools;
 import coza.opencollab.cpos800.ApiCallback;
-import coza.opencollab.cpos800.ApiPrintingCallback;
 import coza.opencollab.cpos800.ApiFailure;
+import coza.opencollab.cpos800.Metrics;
 
 public class CPOS800Plugin extends CordovaPlugin {
 
@@ -24,9 +37,87 @@ public class CPOS800Plugin extends CordovaPlugin {
 	private static final String EXEC_GET_CARD_ID = "getCardId";
 	private static final String EXEC_CANCEL_CARD_ID = "cancelReadTagId";
 	private static final String EXEC_PRINT_TEXT = "printText";
+	private static final String EXEC_PRINT_RAW = "printRaw";
+	private static final String EXEC_PRINT_IMAGE = "printImage";
+	private static final String EXEC_PRINT_BARCODE = "printBarcode";
+	private static final String EXEC_PRINT_QR_CODE = "printQrCode";
+	private static final String EXEC_COMPILE_TEMPLATE = "compileTemplate";
+	private static final String EXEC_PRINT_TEMPLATE = "printTemplate";
+	private static final String EXEC_SET_KEEP_ALIVE = "setKeepAlive";
+	private static final String EXEC_SET_FLOW_CONTROL = "setFlowControl";
+	private static final String EXEC_GET_METRICS = "getMetrics";
+	private static final String EXEC_START_SCAN = "startScan";
+	private static final String EXEC_STOP_SCAN = "stopScan";
+
+	/**
+	 * Default time in milliseconds between polls of the reader while scanning.
+	 */
+	private static final int DEFAULT_SCAN_INTERVAL = 50;
+
+	/**
+	 * Default time in milliseconds a card must be gone before it is reported again.
+	 */
+	private static final int DEFAULT_SCAN_DEBOUNCE = 1000;
+
+	/**
+	 * Error code when the data passed in can't be used.
+	 */
+	private static final int ERROR_IO = 3;
+
+	/**
+	 * Default size in dots of the squares of a QR code.
+	 */
+	private static final int DEFAULT_QR_CODE_SIZE = 6;
+
+	/**
+	 * Prefix of the preferences configuring the profile of the printer serial port.
+	 */
+	private static final String PREFERENCE_PRINTER = "CPOS800Printer";
+
+	/**
+	 * Prefix of the preferences configuring the profile of the NFC reader serial port.
+	 */
+	private static final String PREFERENCE_NFC = "CPOS800Nfc";
 
+	/**
+	 * Preference configuring the Linux priority of the serial port read threads.
+	 */
+	private static final String PREFERENCE_READ_THREAD_PRIORITY = "CPOS800ReadThreadPriority";
 
 
+	@Override
+	protected void pluginInitialize() {
+		loadPortProfile(SerialManager.SerialInterface.PRINTER, PREFERENCE_PRINTER);
+		loadPortProfile(SerialManager.SerialInterface.NFC, PREFERENCE_NFC);
+		final SerialPortRegistry registry = SerialPortRegistry.getInstance();
+		registry.setReadThreadPriority(preferences.getInteger(PREFERENCE_READ_THREAD_PRIORITY, registry.getReadThreadPriority()));
+	}
+
+	/**
+	 * Configure the profile of a serial port from the preferences in config.xml, the
+	 * settings without a preference keep their default. An invalid profile is ignored.
+	 * @param serialInterface Serial interface of the serial port.
+	 * @param prefix Prefix of the names of the preferences of the serial port.
+	 */
+	private void loadPortProfile(SerialManager.SerialInterface serialInterface, String prefix) {
+		final PortProfile defaults = PortProfile.getDefault(serialInterface);
+		try {
+			final PortProfile profile = new PortProfile(
+					preferences.getString(prefix + "Device", defaults.getDevicePath()),
+					preferences.getInteger(prefix + "Baudrate", defaults.getBaudrate()),
+					preferences.getInteger(prefix + "Vmin", defaults.getVmin()),
+					preferences.getInteger(prefix + "Vtime", defaults.getVtime()),
+					preferences.getBoolean(prefix + "FlowControl", defaults.isFlowControl()),
+					preferences.getInteger(prefix + "ReadBufferSize", defaults.getReadBufferSize()),
+					preferences.getInteger(prefix + "PowerOnDelay", defaults.getPowerOnDelay()),
+					preferences.getInteger(prefix + "SettleTime", defaults.getSettleTime()));
+			Log.d(TAG, serialInterface + " profile: " + profile);
+			SerialPortRegistry.getInstance().setProfile(serialInterface, profile);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Invalid " + serialInterface + " profile, using the default", e);
+		}
+	}
+
 	@Override
 	public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
 
@@ -63,26 +154,149 @@ public class CPOS800Plugin extends CordovaPlugin {
 			return true;
 		}
 		else if (EXEC_PRINT_TEXT.equals(action)) {
-			PrinterApi.getInstance().printText(args.getString(0), new ApiPrintingCallback() {
+			PrinterApi.getInstance().printText(args.getString(0), new PrintingCallback(callbackContext, args.optBoolean(1)));
+			return true;
+		}
+		else if (EXEC_PRINT_RAW.equals(action)) {
+			// The bridge delivers array buffers base64 encoded, they are decoded straight to bytes
+			final byte[] data = new CordovaArgs(args).getArrayBuffer(0);
+			PrinterApi.getInstance().printRaw(ByteBuffer.wrap(data), new PrintingCallback(callbackContext, args.optBoolean(1)));
+			return true;
+		}
+		else if (EXEC_PRINT_IMAGE.equals(action)) {
+			final String image = args.getString(0);
+			final boolean reportProgress = args.optBoolean(1);
+			// Decoding and converting the image takes a while, keep it off the WebCore thread
+			cordova.getThreadPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					final byte[] imageData;
+					try {
+						// Accept data URLs as well as bare base64
+						imageData = Base64.decode(image.substring(image.indexOf(',') + 1), Base64.DEFAULT);
+					} catch (IllegalArgumentException e) {
+						callbackContext.error(new ApiFailure(ERROR_IO, "Invalid image").toJsonObject());
+						return;
+					}
+					PrinterApi.getInstance().printImage(imageData, new PrintingCallback(callbackContext, reportProgress));
+				}
+			});
+			return true;
+		}
+		else if (EXEC_PRINT_BARCODE.equals(action)) {
+			final String type = args.optString(1, "CODE128");
+			final int barcodeType;
+			if ("CODE39".equals(type)) {
+				barcodeType = PrinterApi.BARCODE_CODE39;
+			}
+			else if ("EAN13".equals(type)) {
+				barcodeType = PrinterApi.BARCODE_EAN13;
+			}
+			else {
+				barcodeType = PrinterApi.BARCODE_CODE128;
+			}
+			PrinterApi.getInstance().printBarcode(args.getString(0), barcodeType, new PrintingCallback(callbackContext));
+			return true;
+		}
+		else if (EXEC_PRINT_QR_CODE.equals(action)) {
+			PrinterApi.getInstance().printQrCode(args.getString(0), args.optInt(1, DEFAULT_QR_CODE_SIZE), new PrintingCallback(callbackContext));
+			return true;
+		}
+		else if (EXEC_COMPILE_TEMPLATE.equals(action)) {
+			final ReceiptTemplate template;
+			try {
+				template = PrinterApi.getInstance().compileTemplate(args.getString(0), args.getJSONArray(1));
+			} catch (IllegalArgumentException e) {
+				Log.d(TAG, "Invalid receipt template");
+				callbackContext.error(new ApiFailure(ERROR_IO, e.getMessage()).toJsonObject());
+				return true;
+			}
+			// Let the caller check the fields against the values it has
+			callbackContext.success(new JSONArray(template.getFieldNames()));
+			return true;
+		}
+		else if (EXEC_PRINT_TEMPLATE.equals(action)) {
+			final JSONObject values = args.optJSONObject(1);
+			final Map<String, String> fields = new HashMap<String, String>();
+			if (values != null) {
+				final Iterator<String> names = values.keys();
+				while (names.hasNext()) {
+					final String name = names.next();
+					fields.put(name, values.optString(name));
+				}
+			}
+			PrinterApi.getInstance().printTemplate(args.getString(0), fields, new PrintingCallback(callbackContext, args.optBoolean(2)));
+			return true;
+		}
+		else if (EXEC_START_SCAN.equals(action)) {
+			final int pollInterval = args.optInt(0, DEFAULT_SCAN_INTERVAL);
+			final int debounceTime = args.optInt(1, DEFAULT_SCAN_DEBOUNCE);
+			NfcApi.getInstance().startScan(pollInterval, debounceTime, new ApiCallback<byte[]>() {
 				@Override
-				public void success() {
+				public void success(final byte[] parameter) {
+					String serial = DataTools.byteArrayToHex(parameter);
+					Log.d(TAG, "Scanned card  " + serial);
+					// Keep the callback to report the next cards
+					PluginResult result = new PluginResult(PluginResult.Status.OK, serial);
+					result.setKeepCallback(true);
+					callbackContext.sendPluginResult(result);
+				}
+
+				@Override
+				public void failed(final ApiFailure failure) {
+					Log.d(TAG, "Scanning for cards stopped");
+					callbackContext.error(failure.toJsonObject());
+				}
+			});
+			return true;
+		}
+		else if (EXEC_STOP_SCAN.equals(action)) {
+			NfcApi.getInstance().stopScan(new ApiCallback<String>() {
+				@Override
+				public void success(final String parameter) {
 					callbackContext.success();
 				}
 
 				@Override
 				public void failed(final ApiFailure failure) {
-					Log.d(TAG, "Exception while trying to print");
 					callbackContext.error(failure.toJsonObject());
 				}
 			});
 			return true;
 		}
+		else if (EXEC_SET_FLOW_CONTROL.equals(action)) {
+			try {
+				PrinterApi.getInstance().setFlowControl(args.getInt(0), args.getInt(1));
+			} catch (IllegalArgumentException e) {
+				callbackContext.error(new ApiFailure(ERROR_IO, e.getMessage()).toJsonObject());
+				return true;
+			}
+			callbackContext.success();
+			return true;
+		}
+		else if (EXEC_GET_METRICS.equals(action)) {
+			final Metrics metrics = Metrics.getInstance();
+			final JSONObject snapshot = metrics.toJsonObject();
+			// Let the caller collect the metrics per period
+			if (args.optBoolean(0)) {
+				metrics.reset();
+			}
+			callbackContext.success(snapshot);
+			return true;
+		}
+		else if (EXEC_SET_KEEP_ALIVE.equals(action)) {
+			SerialPortRegistry.getInstance().setIdleTimeout(args.optLong(0, 0));
+			callbackContext.success();
+			return true;
+		}
 		return false;
 	}
 
 	@Override
 	public void onStop(){
 		NfcApi.getInstance().cancel(new NoopApiCallback());
+		NfcApi.getInstance().stopScan(new NoopApiCallback());
+		SerialPortRegistry.getInstance().closeIdleSerialPorts();
 	}
 
 }
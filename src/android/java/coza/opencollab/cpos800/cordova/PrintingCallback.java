@@ -0,0 +1,61 @@
+package coza.opencollab.cpos800.cordova;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import coza.opencollab.cpos800.ApiFailure;
+import coza.opencollab.cpos800.ApiPrintingProgressCallback;
+
+/**
+ * Passes the outcome of a print job on to the javascript callbacks. When asked for, the
+ * progress of the job is passed on as well, as results that keep the callback.
+ */
+public class PrintingCallback implements ApiPrintingProgressCallback {
+
+	private static final String TAG = "CPOS800";
+
+	private final CallbackContext callbackContext;
+
+	private final boolean reportProgress;
+
+	public PrintingCallback(CallbackContext callbackContext) {
+		this(callbackContext, false);
+	}
+
+	public PrintingCallback(CallbackContext callbackContext, boolean reportProgress) {
+		this.callbackContext = callbackContext;
+		this.reportProgress = reportProgress;
+	}
+
+	@Override
+	public void progress(final int sent, final int total) {
+		if (!reportProgress) {
+			return;
+		}
+		final JSONObject progress = new JSONObject();
+		try {
+			progress.put("sent", sent);
+			progress.put("total", total);
+		} catch (JSONException e) {
+			Log.e(TAG, "Exception while reporting progress", e);
+			return;
+		}
+		PluginResult result = new PluginResult(PluginResult.Status.OK, progress);
+		result.setKeepCallback(true);
+		callbackContext.sendPluginResult(result);
+	}
+
+	@Override
+	public void success() {
+		callbackContext.success();
+	}
+
+	@Override
+	public void failed(final ApiFailure failure) {
+		Log.d(TAG, "Exception while trying to print");
+		callbackContext.error(failure.toJsonObject());
+	}
+}
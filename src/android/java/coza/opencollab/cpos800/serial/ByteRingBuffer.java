@@ -0,0 +1,241 @@
+package coza.opencollab.cpos800.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Fixed capacity single-producer/single-consumer ring buffer of bytes.
+ *
+ * Only one thread may call {@link #write(byte[], int, int)} and the other producing
+ * methods (the producer) and only one thread at a time may call the consuming methods. No
+ * locks are taken, the producer and consumer only communicate through the volatile head
+ * and tail indices.
+ *
+ * The bytes are stored in a direct buffer, so {@link #receive(ReadableByteChannel)} lets
+ * the serial port write the received bytes straight into the ring buffer.
+ *
+ * When the buffer is full, the bytes that do not fit are dropped and counted in
+ * {@link #getOverflowCount()} instead of discarding what was already received.
+ */
+public class ByteRingBuffer {
+
+    /**
+     * Backing storage, the capacity is always a power of two. Only accessed with absolute
+     * gets and puts, the positions of the views below belong to the producer and consumer.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * View of the storage used by the producer.
+     */
+    private final ByteBuffer producerView;
+
+    /**
+     * View of the storage used by the consumer.
+     */
+    private final ByteBuffer consumerView;
+
+    /**
+     * Receives the bytes dropped when the buffer is full, created when needed.
+     */
+    private ByteBuffer overflowBuffer;
+
+    /**
+     * Mask to convert an index into a position in the backing storage.
+     */
+    private final int mask;
+
+    /**
+     * Index of the next byte to consume. Only written by the consumer.
+     */
+    private volatile long head = 0;
+
+    /**
+     * Index of the next byte to produce. Only written by the producer.
+     */
+    private volatile long tail = 0;
+
+    /**
+     * Number of bytes that got dropped because the buffer was full.
+     */
+    private volatile long overflowCount = 0;
+
+    /**
+     * Create a new ring buffer.
+     * @param minimumCapacity Minimum number of bytes the buffer must be able to hold, it will
+     *                        be rounded up to the next power of two.
+     */
+    public ByteRingBuffer(int minimumCapacity) {
+        if (minimumCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int capacity = Integer.highestOneBit(minimumCapacity);
+        if (capacity < minimumCapacity) {
+            capacity <<= 1;
+        }
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.producerView = buffer.duplicate();
+        this.consumerView = buffer.duplicate();
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return Total number of bytes that the buffer can hold.
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return Number of bytes available to the consumer.
+     */
+    public int available() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return Number of bytes dropped since the buffer was created because it was full.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Append bytes to the buffer. May only be called by the producer thread.
+     * @param src Source of the bytes.
+     * @param offset Offset in the source to start copying from.
+     * @param length Number of bytes to append.
+     * @return Number of bytes that were appended, anything less than length was dropped.
+     */
+    public int write(byte[] src, int offset, int length) {
+        final long currentTail = tail;
+        final int free = buffer.capacity() - (int) (currentTail - head);
+        final int count = Math.min(free, length);
+        if (count < length) {
+            overflowCount += length - count;
+        }
+        if (count > 0) {
+            final int position = (int) currentTail & mask;
+            final int firstPart = Math.min(count, buffer.capacity() - position);
+            producerView.clear();
+            producerView.position(position);
+            producerView.put(src, offset, firstPart);
+            if (firstPart < count) {
+                producerView.position(0);
+                producerView.put(src, offset + firstPart, count - firstPart);
+            }
+            // Publishing the new tail makes the copied bytes visible to the consumer
+            tail = currentTail + count;
+        }
+        return count;
+    }
+
+    /**
+     * Read bytes from a channel straight into the free space of the buffer, blocking like
+     * the read of the channel. The received bytes are not available to the consumer until
+     * they are committed with {@link #commit(int)}, until then the producer can look at
+     * them with {@link #getReceived(int)}. May only be called by the producer thread.
+     *
+     * When the buffer is full the channel is still read, so the sender is not held up, but
+     * the bytes are dropped and counted in {@link #getOverflowCount()}.
+     * @param channel Channel to read from.
+     * @return Number of bytes received, -1 at the end of the stream.
+     * @throws IOException If reading the channel failed.
+     */
+    public int receive(ReadableByteChannel channel) throws IOException {
+        final long currentTail = tail;
+        final int free = buffer.capacity() - (int) (currentTail - head);
+        if (free == 0) {
+            if (overflowBuffer == null) {
+                overflowBuffer = ByteBuffer.allocateDirect(1024);
+            }
+            overflowBuffer.clear();
+            final int dropped = channel.read(overflowBuffer);
+            if (dropped > 0) {
+                overflowCount += dropped;
+            }
+            return dropped < 0 ? -1 : 0;
+        }
+        // Only the free space up to the end of the storage, the next read continues at the start
+        final int position = (int) currentTail & mask;
+        producerView.clear();
+        producerView.position(position);
+        producerView.limit(position + Math.min(free, buffer.capacity() - position));
+        return channel.read(producerView);
+    }
+
+    /**
+     * Get a byte that was received but not committed yet. May only be called by the producer thread.
+     * @param index Index relative to the first received byte.
+     * @return The byte at the index.
+     */
+    public byte getReceived(int index) {
+        return buffer.get((int) (tail + index) & mask);
+    }
+
+    /**
+     * Make received bytes available to the consumer. May only be called by the producer thread.
+     * @param length Number of bytes returned by {@link #receive(ReadableByteChannel)}.
+     */
+    public void commit(int length) {
+        tail += length;
+    }
+
+    /**
+     * Get a byte without consuming it. May only be called by the consumer thread.
+     * @param index Index relative to the first available byte.
+     * @return The byte at the index.
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= available()) {
+            throw new IndexOutOfBoundsException("Index " + index + " is not available");
+        }
+        return buffer.get((int) (head + index) & mask);
+    }
+
+    /**
+     * Copy available bytes without consuming them. May only be called by the consumer thread.
+     * @param dst Destination of the bytes.
+     * @param offset Offset in the destination to start copying to.
+     * @param length Maximum number of bytes to copy.
+     * @return Number of bytes copied.
+     */
+    public int peek(byte[] dst, int offset, int length) {
+        final long currentHead = head;
+        final int count = Math.min(length, (int) (tail - currentHead));
+        if (count > 0) {
+            final int position = (int) currentHead & mask;
+            final int firstPart = Math.min(count, buffer.capacity() - position);
+            consumerView.clear();
+            consumerView.position(position);
+            consumerView.get(dst, offset, firstPart);
+            if (firstPart < count) {
+                consumerView.position(0);
+                consumerView.get(dst, offset + firstPart, count - firstPart);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Consume bytes without copying them. May only be called by the consumer thread.
+     * @param length Number of bytes to consume.
+     * @return Number of bytes consumed.
+     */
+    public int skip(int length) {
+        final long currentHead = head;
+        final int count = Math.min(length, (int) (tail - currentHead));
+        if (count > 0) {
+            head = currentHead + count;
+        }
+        return count;
+    }
+
+    /**
+     * Consume all the bytes that are currently available. May only be called by the consumer thread.
+     */
+    public void clear() {
+        head = tail;
+    }
+}
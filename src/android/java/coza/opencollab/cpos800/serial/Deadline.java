@@ -0,0 +1,93 @@
+package coza.opencollab.cpos800.serial;
+
+import android.os.SystemClock;
+
+/**
+ * Deadline of an operation on the serial port, which can also be cancelled. The waits of
+ * the serial manager and the scheduler that are given the deadline end as soon as the
+ * deadline expires or gets cancelled, so a cancelled operation gives up the serial port
+ * right away.
+ */
+public class Deadline {
+
+    /**
+     * Time at which the deadline expires, Long.MAX_VALUE when it never expires.
+     */
+    private volatile long expiresAt = Long.MAX_VALUE;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Create a deadline that only ends when it gets cancelled, until it is started with
+     * {@link #expireAfter(long)}.
+     */
+    public Deadline() {
+    }
+
+    /**
+     * Create a deadline that expires after the given time.
+     * @param timeout Time in milliseconds from now.
+     * @return The deadline.
+     */
+    public static Deadline after(long timeout) {
+        final Deadline deadline = new Deadline();
+        deadline.expireAfter(timeout);
+        return deadline;
+    }
+
+    /**
+     * Let the deadline expire after the given time.
+     * @param timeout Time in milliseconds from now.
+     */
+    public void expireAfter(long timeout) {
+        expiresAt = SystemClock.uptimeMillis() + timeout;
+    }
+
+    /**
+     * Cancel the operation, and wake up the threads waiting on the serial port so they
+     * notice right away.
+     */
+    public void cancel() {
+        cancelled = true;
+        SerialPortRegistry.getInstance().wakeUpReaders();
+        SerialScheduler.getInstance().wakeUp();
+    }
+
+    /**
+     * @return True if the operation got cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return True if the deadline expired or got cancelled.
+     */
+    public boolean hasExpired() {
+        return remaining() == 0;
+    }
+
+    /**
+     * @return Time in milliseconds left until the deadline, 0 when it expired or got
+     *         cancelled.
+     */
+    public long remaining() {
+        if (cancelled) {
+            return 0;
+        }
+        final long expiresAt = this.expiresAt;
+        if (expiresAt == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(expiresAt - SystemClock.uptimeMillis(), 0);
+    }
+
+    /**
+     * Limit a timeout to the deadline.
+     * @param timeout Time in milliseconds.
+     * @return The timeout, or the time left until the deadline when that is shorter.
+     */
+    public long remaining(long timeout) {
+        return Math.min(timeout, remaining());
+    }
+}
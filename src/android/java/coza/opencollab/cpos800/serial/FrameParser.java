@@ -0,0 +1,33 @@
+package coza.opencollab.cpos800.serial;
+
+/**
+ * Incremental parser of the responses a device sends. Every received byte is fed to the
+ * parser as soon as the read thread receives it, so a response is known to be complete the
+ * moment its last byte arrives instead of after the line went silent.
+ *
+ * The parser is only used by the read thread and the thread reading the responses, while
+ * they hold the read lock of the serial manager.
+ */
+public interface FrameParser {
+
+    /**
+     * Consume the next received byte.
+     * @param b The byte.
+     * @return Length of the frame completed by this byte, including the bytes fed before it,
+     *         or 0 when the frame is not complete yet.
+     */
+    int feed(byte b);
+
+    /**
+     * Called when the line went silent while a frame was incomplete, for responses that
+     * can only be told apart by their length.
+     * @return Length of the frame made up by the bytes fed so far, or 0 when they are not a
+     *         complete frame.
+     */
+    int flush();
+
+    /**
+     * Discard the bytes fed since the last complete frame.
+     */
+    void reset();
+}
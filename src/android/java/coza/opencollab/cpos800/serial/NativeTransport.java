@@ -0,0 +1,183 @@
+package coza.opencollab.cpos800.serial;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.EnumMap;
+import java.util.Map;
+
+import android_serialport_api.SerialPort;
+import coza.opencollab.cpos800.DataTools;
+
+/**
+ * Transport using the native serial ports and GPIO configuration of the CPOS800.
+ */
+public class NativeTransport implements Transport {
+
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "NativeTransport";
+
+    /**
+     * GPIO file to configure for the printer
+     */
+    private static final String GPIO_PRINTER = "/sys/class/cw_gpios/printer_en/enable";
+    private static final String GPIO_STM32 = "/sys/class/stm32_gpio/stm32_en/enable";
+
+    /**
+     * Data to write to enable a GPIO.
+     */
+    private static final byte[] GPIO_ENABLE = { '1' };
+
+    /**
+     * Data to write to disable a GPIO.
+     */
+    private static final byte[] GPIO_DISABLE = { '0' };
+
+    private final boolean isStm32 = fileIsExists(GPIO_STM32);
+
+    /**
+     * Open serial ports, the NFC reader and the printer are on separate UARTs.
+     */
+    private final Map<SerialManager.SerialInterface, SerialPort> serialPorts =
+            new EnumMap<SerialManager.SerialInterface, SerialPort>(SerialManager.SerialInterface.class);
+
+    private boolean fileIsExists(String strFile) {
+        try {
+            File f = new File(strFile);
+            if (!f.exists()) {
+                return false;
+            }
+        } catch (Exception e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Only the printer is switched with GPIOs, its enable and on devices with an STM32 the
+     * enable of the STM32. Switching the NFC reader leaves them alone, so the printer keeps
+     * printing while the reader is used.
+     */
+    @Override
+    public synchronized void setPower(SerialManager.SerialInterface serialInterface, boolean enable) {
+        setGPIO(serialInterface, enable);
+        if (serialInterface == SerialManager.SerialInterface.PRINTER && isStm32) {
+            if (enable) {
+                SystemClock.sleep(100);
+            }
+            setGPIO(SerialManager.SerialInterface.STM32, enable);
+        }
+    }
+
+    @Override
+    public void open(SerialManager.SerialInterface serialInterface, PortProfile profile) throws IOException {
+        synchronized (serialPorts) {
+            if(serialPorts.containsKey(serialInterface)){
+                Log.w(TAG, serialInterface + " serial connection is STILL OPEN!");
+            }
+        }
+
+        Log.d(TAG, "Opening " + serialInterface + " on " + profile);
+        final SerialPort serialPort = new SerialPort(new File(profile.getDevicePath()), profile.getBaudrate(), 0);
+        try {
+            // Raw mode already matches the default line settings
+            if (profile.hasTermiosOptions()
+                    && !serialPort.configure(profile.getVmin(), profile.getVtime(), profile.isFlowControl())) {
+                Log.w(TAG, "Ignoring the termios options of " + serialInterface);
+            }
+            // Lets close() wake up a blocked read instead of closing the port under it
+            if (serialPort.enableNonBlocking()) {
+                Log.d(TAG, "Using non-blocking io");
+            }
+        } catch (IOException e) {
+            serialPort.close();
+            throw e;
+        }
+        synchronized (serialPorts) {
+            serialPorts.put(serialInterface, serialPort);
+        }
+    }
+
+    @Override
+    public ReadableByteChannel getReadChannel(SerialManager.SerialInterface serialInterface) {
+        return getSerialPort(serialInterface).getChannel();
+    }
+
+    @Override
+    public GatheringByteChannel getWriteChannel(SerialManager.SerialInterface serialInterface) {
+        return getSerialPort(serialInterface).getChannel();
+    }
+
+    @Override
+    public void close(SerialManager.SerialInterface serialInterface) {
+        final SerialPort serialPort;
+        synchronized (serialPorts) {
+            serialPort = serialPorts.remove(serialInterface);
+        }
+        if(serialPort != null){
+            serialPort.wakeup();
+            serialPort.close();
+        }
+    }
+
+    private SerialPort getSerialPort(SerialManager.SerialInterface serialInterface) {
+        synchronized (serialPorts) {
+            return serialPorts.get(serialInterface);
+        }
+    }
+
+    /**
+     * Enable/Disable the GPIO configuration for the specified serial interface.
+     * @param serialInterface Serial interface to enable/disable
+     * @param enable Flag if the interface should be enabled or disable.
+     */
+    private void setGPIO(SerialManager.SerialInterface serialInterface, boolean enable){
+        String gpioFile = null;
+        Log.i(TAG, String.format("Setting GPIO for %s to %s", serialInterface.toString(), enable ? "ENABLED" : "DISABLED"));
+
+        if(serialInterface == SerialManager.SerialInterface.PRINTER){
+            gpioFile = GPIO_PRINTER;
+        }
+        else if(serialInterface == SerialManager.SerialInterface.STM32){
+            gpioFile = GPIO_STM32;
+        }
+
+        if(gpioFile != null){
+            FileOutputStream fw = null;
+            FileInputStream fi = null;
+            byte[] buffer = new byte[10];
+            try {
+
+                fw = new FileOutputStream(gpioFile);
+                fi = new FileInputStream(gpioFile);
+                fw.write(enable ? GPIO_ENABLE : GPIO_DISABLE);
+                fw.flush();
+                int size = fi.read(buffer);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "GPIO=" + DataTools.byteArrayToHex(buffer, size, true));
+                }
+            }catch (IOException e){
+                Log.e(TAG, "Exception while trying to set GPIO", e);
+            }
+            finally {
+                if(fw != null) {
+                    try {
+                        fw.close();
+                    } catch (IOException e) {}
+                    try {
+                        fi.close();
+                    } catch (IOException e) {}
+                }
+            }
+
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package coza.opencollab.cpos800.serial;
+
+import java.util.Arrays;
+
+/**
+ * Settings used to open a serial port: the device, its line settings and the timings of
+ * the device behind it. Newer firmware can run faster baud rates, so the profiles can be
+ * configured without rebuilding the plugin.
+ */
+public class PortProfile {
+
+    /**
+     * Baud rates supported by the native serial port library.
+     */
+    private static final int[] BAUDRATES = {
+            50, 75, 110, 134, 150, 200, 300, 600, 1200, 1800, 2400, 4800, 9600, 19200, 38400,
+            57600, 115200, 230400, 460800, 500000, 576000, 921600, 1000000, 1152000, 1500000,
+            2000000, 2500000, 3000000, 3500000, 4000000
+    };
+
+    /**
+     * Baud rate of the CPOS800 firmware.
+     */
+    public static final int DEFAULT_BAUDRATE = 230400;
+
+    /**
+     * Default size in bytes of the buffer holding the bytes received from a serial port.
+     */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Smallest size in bytes of the read buffer, it must hold the largest response.
+     */
+    private static final int MIN_READ_BUFFER_SIZE = 1024;
+
+    private final String devicePath;
+    private final int baudrate;
+    private final int vmin;
+    private final int vtime;
+    private final boolean flowControl;
+    private final int readBufferSize;
+    private final int powerOnDelay;
+    private final int settleTime;
+
+    /**
+     * @param devicePath Path of the serial port device.
+     * @param baudrate Baud rate of the serial port.
+     * @param vmin Minimum number of bytes of a read, from 0 to 255.
+     * @param vtime Time in tenths of a second a read waits for more bytes, from 0 to 255.
+     * @param flowControl True to enable the RTS/CTS hardware flow control.
+     * @param readBufferSize Size in bytes of the buffer holding the received bytes, rounded
+     *                       up to a power of two.
+     * @param powerOnDelay Time in milliseconds to wait between powering on the device and
+     *                     opening the serial port.
+     * @param settleTime Time in milliseconds the device needs to settle after opening, when
+     *                   it does not answer the readiness handshake.
+     * @throws IllegalArgumentException If a setting is out of range.
+     */
+    public PortProfile(String devicePath, int baudrate, int vmin, int vtime, boolean flowControl,
+                       int readBufferSize, int powerOnDelay, int settleTime) {
+        if (devicePath == null || devicePath.length() == 0) {
+            throw new IllegalArgumentException("No device path");
+        }
+        if (Arrays.binarySearch(BAUDRATES, baudrate) < 0) {
+            throw new IllegalArgumentException("Unsupported baud rate: " + baudrate);
+        }
+        if (vmin < 0 || vmin > 255 || vtime < 0 || vtime > 255) {
+            throw new IllegalArgumentException("VMIN and VTIME must be between 0 and 255: " + vmin + ", " + vtime);
+        }
+        if (readBufferSize < MIN_READ_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Read buffer size below " + MIN_READ_BUFFER_SIZE + ": " + readBufferSize);
+        }
+        if (powerOnDelay < 0 || settleTime < 0) {
+            throw new IllegalArgumentException("Negative delay: " + powerOnDelay + ", " + settleTime);
+        }
+        this.devicePath = devicePath;
+        this.baudrate = baudrate;
+        this.vmin = vmin;
+        this.vtime = vtime;
+        this.flowControl = flowControl;
+        this.readBufferSize = readBufferSize;
+        this.powerOnDelay = powerOnDelay;
+        this.settleTime = settleTime;
+    }
+
+    /**
+     * Get the profile the CPOS800 firmware works with.
+     * @param serialInterface Serial interface of the serial port, NFC or PRINTER.
+     * @return The default profile of the serial port.
+     * @throws IllegalArgumentException If the serial interface is not a serial port.
+     */
+    public static PortProfile getDefault(SerialManager.SerialInterface serialInterface) {
+        switch (serialInterface) {
+            case NFC:
+                return new PortProfile("/dev/ttyHSL1", DEFAULT_BAUDRATE, 1, 0, false, DEFAULT_READ_BUFFER_SIZE, 0, 100);
+            case PRINTER:
+                return new PortProfile("/dev/ttyHSL0", DEFAULT_BAUDRATE, 1, 0, false, DEFAULT_READ_BUFFER_SIZE, 0, 500);
+            default:
+                throw new IllegalArgumentException("Not a serial port: " + serialInterface);
+        }
+    }
+
+    /**
+     * @return Path of the serial port device.
+     */
+    public String getDevicePath() {
+        return devicePath;
+    }
+
+    /**
+     * @return Baud rate of the serial port.
+     */
+    public int getBaudrate() {
+        return baudrate;
+    }
+
+    /**
+     * @return Minimum number of bytes of a read.
+     */
+    public int getVmin() {
+        return vmin;
+    }
+
+    /**
+     * @return Time in tenths of a second a read waits for more bytes.
+     */
+    public int getVtime() {
+        return vtime;
+    }
+
+    /**
+     * @return True if the RTS/CTS hardware flow control is enabled.
+     */
+    public boolean isFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * @return True if the line settings differ from the raw mode the serial port is
+     *         opened in.
+     */
+    public boolean hasTermiosOptions() {
+        return vmin != 1 || vtime != 0 || flowControl;
+    }
+
+    /**
+     * @return Size in bytes of the buffer holding the received bytes.
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * @return Time in milliseconds to wait between powering on the device and opening the
+     *         serial port.
+     */
+    public int getPowerOnDelay() {
+        return powerOnDelay;
+    }
+
+    /**
+     * @return Time in milliseconds the device needs to settle after opening, when it does
+     *         not answer the readiness handshake.
+     */
+    public int getSettleTime() {
+        return settleTime;
+    }
+
+    @Override
+    public String toString() {
+        return devicePath + " " + baudrate + " baud, VMIN " + vmin + ", VTIME " + vtime
+                + (flowControl ? ", RTS/CTS" : "");
+    }
+}
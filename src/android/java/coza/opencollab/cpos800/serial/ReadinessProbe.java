@@ -0,0 +1,20 @@
+package coza.opencollab.cpos800.serial;
+
+/**
+ * Handshake used to find out if a device is ready to accept commands after its
+ * serial interface was opened.
+ */
+public interface ReadinessProbe {
+
+    /**
+     * @return Command sent to the device, it must not have side effects on the device.
+     */
+    byte[] getCommand();
+
+    /**
+     * Check the response to the command.
+     * @param response Bytes received since the command was sent.
+     * @return True if the response shows that the device is ready.
+     */
+    boolean isReady(ByteRingBuffer response);
+}
@@ -1,20 +1,25 @@
 package coza.opencollab.cpos800.serial;
 
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import android_serialport_api.SerialPort;
 import coza.opencollab.cpos800.DataTools;
+import coza.opencollab.cpos800.LatencyHistogram;
+import coza.opencollab.cpos800.Metrics;
 
 /**
- * Serial Manager
+ * Serial Manager of a single serial port. Every serial port has its own manager, read
+ * thread and read buffer, see {@link SerialPortRegistry}.
  */
 public class SerialManager {
 
@@ -24,145 +29,268 @@ public class SerialManager {
     private static final String TAG = "SerialManager";
 
     /**
-     * Reference to the singleton serial manager
+     * Enumeration type indicating which type of serial port should be openned
      */
-    private static SerialManager serialManager;
+    public enum SerialInterface{
+        NFC,
+        PRINTER,
+        STM32,
+        NONE
+    }
 
+    /**
+     * Minimum time in milliseconds between two readiness probes.
+     */
+    private static final int PROBE_INTERVAL = 100;
 
     /**
-     * GPIO file to configure for the printer
+     * Registry the serial port belongs to.
      */
-    private static final String GPIO_PRINTER = "/sys/class/cw_gpios/printer_en/enable";
-    private static final String GPIO_STM32 = "/sys/class/stm32_gpio/stm32_en/enable";
+    private final SerialPortRegistry registry;
 
-    private boolean isStm32 = fileIsExists(GPIO_STM32);
+    /**
+     * Serial interface of this serial port.
+     */
+    private final SerialInterface serialInterface;
 
     /**
-     * Data to write to enable a GPIO.
+     * Transport the serial port was opened with, null when the serial port is closed.
      */
-    private static final byte[] GPIO_ENABLE = { '1' };
+    private volatile Transport transport;
+
+    private ReadableByteChannel readChannel = null;
+
+    private GatheringByteChannel writeChannel = null;
 
     /**
-     * Data to write to disable a GPIO.
+     * Thread for reading the read channel. Started when the serial port is first opened,
+     * it parks between sessions and is reused by every following session.
      */
-    private static final byte[] GPIO_DISABLE = { '0' };
+    private SerialReadThread readThread;
 
     /**
-     * Enumeration type indicating which type of serial port should be openned
+     * Buffer of bytes that has been read. The read thread is the only producer, and the
+     * thread currently holding this manager is the only consumer.
+     * Its size comes from the profile, it is only replaced while the serial port is closed.
      */
-    public enum SerialInterface{
-        NFC,
-        PRINTER,
-        STM32,
-        NONE
-    }
+    private volatile ByteRingBuffer readBuffer = new ByteRingBuffer(PortProfile.DEFAULT_READ_BUFFER_SIZE);
 
     /**
-     * Serial interface that is currently open
+     * Lock used to wait for new data. The read thread only notifies waiters on this lock
+     * when there are threads waiting, so receiving data never blocks on it otherwise.
      */
-    private SerialInterface currentInterface = SerialInterface.NONE;
+    private final Object readLock = new Object();
 
-    private SerialPort serialPort;
+    /**
+     * Number of threads currently waiting on the read lock.
+     */
+    private volatile int readWaiters = 0;
 
-    private InputStream inputStream = null;
+    /**
+     * Parser of the responses of the device behind the open serial interface, null when the
+     * responses are not parsed. Guarded by the read lock.
+     */
+    private volatile FrameParser frameParser;
 
-    private OutputStream outputStream = null;
+    /**
+     * Lengths of the complete frames at the start of the read buffer, in the order they were
+     * received. Guarded by the read lock.
+     */
+    private final IntQueue frameLengths = new IntQueue();
 
     /**
-     * Thread for reading the input stream
+     * Pending close of an idle serial port, null when the serial port is in use or closed.
      */
-    private SerialReadThread readThread;
+    private ScheduledFuture<?> idleClose;
 
     /**
-     * Buffer of bytes that has been read.
-     * Size: 50Kb
+     * Incremented every time the serial port is opened or released, a scheduled idle close
+     * only goes ahead if nothing happened since it was scheduled.
      */
-    private byte[] readBuffer = new byte[50 * 1024];
+    private int sessionGeneration = 0;
 
     /**
-     * Current number of bytes read into the buffer, also the current index to add
-     * the next item in the buffer
+     * Statistics of the readiness handshakes of the device.
      */
-    private int readBufferSize = 0;
+    private final ReadinessStatistics readinessStatistics = new ReadinessStatistics();
 
+    /**
+     * Bytes received from and sent to the devices.
+     */
+    private final AtomicLong bytesIn = Metrics.getInstance().counter("serial.bytesIn");
+    private final AtomicLong bytesOut = Metrics.getInstance().counter("serial.bytesOut");
 
     /**
-     * Get an instance of the serial manager
-     * @return instance of the serial manager.
+     * Responses read, and reads that timed out without a response.
      */
-    public static SerialManager getInstance(){
-        if(serialManager == null){
-            synchronized (SerialManager.class) {
-                if(serialManager == null) {
-                    serialManager = new SerialManager();
-                }
-            }
-        }
-        return serialManager;
+    private final AtomicLong framesRead = Metrics.getInstance().counter("serial.frames");
+    private final AtomicLong readTimeouts = Metrics.getInstance().counter("serial.readTimeouts");
+
+    /**
+     * Received bytes dropped because the read buffer was full, and resets of the read buffer
+     * that discarded bytes nobody read.
+     */
+    private final AtomicLong droppedBytes = Metrics.getInstance().counter("serial.droppedBytes");
+    private final AtomicLong discardingResets = Metrics.getInstance().counter("serial.discardingResets");
+
+    /**
+     * Serial ports opened.
+     */
+    private final AtomicLong opens = Metrics.getInstance().counter("serial.opens");
+
+    /**
+     * Readiness handshakes the device did not answer.
+     */
+    private final AtomicLong readyTimeouts = Metrics.getInstance().counter("serial.readyTimeouts");
+
+    /**
+     * Time taken to open a serial interface, to switch its power on, and for the device to
+     * be ready.
+     */
+    private final LatencyHistogram openTime = Metrics.getInstance().histogram("serial.open");
+    private final LatencyHistogram powerTime = Metrics.getInstance().histogram("serial.power");
+    private final LatencyHistogram readyTime = Metrics.getInstance().histogram("serial.ready");
+
+    /**
+     * Get the serial manager of a serial port.
+     * @param serialInterface Serial interface of the serial port, NFC or PRINTER.
+     * @return The serial manager of the serial port.
+     * @throws IllegalArgumentException If the serial interface is not a serial port.
+     */
+    public static SerialManager getInstance(SerialInterface serialInterface){
+        return SerialPortRegistry.getInstance().getPort(serialInterface);
     }
 
     /**
-     * Private constructor to the serial manager
+     * Constructor of the serial manager, serial managers are created by the registry.
+     * @param registry Registry the serial port belongs to.
+     * @param serialInterface Serial interface of the serial port.
      */
-    private SerialManager(){}
+    SerialManager(SerialPortRegistry registry, SerialInterface serialInterface){
+        this.registry = registry;
+        this.serialInterface = serialInterface;
+    }
 
+    /**
+     * @return The serial interface of this serial port.
+     */
+    public SerialInterface getSerialInterface() {
+        return serialInterface;
+    }
 
-    private boolean fileIsExists(String strFile) {
-        try {
-            File f = new File(strFile);
-            if (!f.exists()) {
-                return false;
-            }
-        } catch (Exception e) {
-            return false;
-        }
-        return true;
+    /**
+     * @return Profile the serial port is opened with.
+     */
+    public PortProfile getProfile() {
+        return registry.getProfile(serialInterface);
     }
 
     /**
-     * Open a serial interface.
-     * @param serialInterface Serial interface to open.
-     * @return True if the serial port was already opened
-     * @throws IOException If there is IOException trying to open the serial port.
+     * @return True if the serial port is open.
      */
-    public synchronized boolean openSerialPort(SerialInterface serialInterface) throws IOException {
-        // If we have a running connection
-        if(serialPort != null) {
-            if (serialInterface == currentInterface) {
-                Log.d(TAG, "Serial port already open");
-                return true;
-            }
-            else if(currentInterface != SerialInterface.NONE){
-                Log.d(TAG, "Other serial connection is currently open, closing");
-                closeSerialPort();
-                SystemClock.sleep(700);
-            }
-        }
-        currentInterface = serialInterface;
-        setGPIO(currentInterface, true);
+    public boolean isOpen() {
+        return transport != null;
+    }
 
+    /**
+     * Release the serial port once an operation completed. The serial port is closed
+     * immediately, or after the idle timeout when the keep-alive session mode is enabled.
+     */
+    public synchronized void releaseSerialPort() {
+        cancelIdleClose();
+        final long idleTimeout = registry.getIdleTimeout();
+        if (idleTimeout <= 0 || transport == null) {
+            closeSerialPort();
+            return;
+        }
+        final int generation = ++sessionGeneration;
+        idleClose = registry.getIdleExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SerialManager.this) {
+                    if (generation == sessionGeneration) {
+                        Log.d(TAG, "Serial port idle, closing");
+                        closeSerialPort();
+                    }
+                }
+            }
+        }, idleTimeout, TimeUnit.MILLISECONDS);
+    }
 
-        if (serialInterface == SerialInterface.PRINTER && isStm32) {
-            SystemClock.sleep(100);
-            setGPIO(SerialInterface.STM32, true);
+    /**
+     * Close the serial port if it is only kept open by the keep-alive session mode.
+     */
+    public synchronized void closeIdleSerialPort() {
+        if (idleClose != null) {
+            closeSerialPort();
         }
+    }
 
-        if(serialPort != null){
-            Log.w(TAG, "Other serial connection is STILL OPEN!");
+    /**
+     * Close or reschedule the close of the serial port if it is only kept open by the
+     * keep-alive session mode, after the idle timeout changed.
+     */
+    synchronized void rescheduleIdleClose() {
+        if (idleClose != null) {
+            releaseSerialPort();
         }
+    }
 
+    /**
+     * Cancel the pending close of an idle serial port.
+     */
+    private void cancelIdleClose() {
+        sessionGeneration++;
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+    }
 
+    /**
+     * Open the serial port.
+     * @return True if the serial port was already opened
+     * @throws IOException If there is IOException trying to open the serial port.
+     */
+    public synchronized boolean openSerialPort() throws IOException {
+        // The serial port is in use again, it is no longer idle
+        cancelIdleClose();
 
+        if(transport != null) {
+            Log.d(TAG, serialInterface + " serial port already open");
+            return true;
+        }
+        final long start = System.nanoTime();
+        final Transport transport = registry.getTransport();
+        final PortProfile profile = getProfile();
+        // The capacity is the read buffer size of the profile rounded up to a power of two
+        if (readBuffer.capacity() < profile.getReadBufferSize()
+                || readBuffer.capacity() >= profile.getReadBufferSize() * 2) {
+            readBuffer = new ByteRingBuffer(profile.getReadBufferSize());
+        }
+        final long powerStart = System.nanoTime();
+        transport.setPower(serialInterface, true);
+        powerTime.recordSince(powerStart);
+        if (profile.getPowerOnDelay() > 0) {
+            SystemClock.sleep(profile.getPowerOnDelay());
+        }
+        try {
+            transport.open(serialInterface, profile);
+        } catch (IOException e) {
+            transport.setPower(serialInterface, false);
+            throw e;
+        }
+        this.transport = transport;
 
-        if(serialInterface == SerialInterface.NFC){
-            serialPort = new SerialPort(new File("/dev/ttyHSL1"), 230400, 0);
-        }else{
-            serialPort = new SerialPort(new File("/dev/ttyHSL0"), 230400, 0);
+        this.writeChannel = transport.getWriteChannel(serialInterface);
+        this.readChannel = transport.getReadChannel(serialInterface);
+        if (this.readThread == null) {
+            this.readThread = new SerialReadThread();
+            this.readThread.start();
         }
-        this.outputStream = serialPort.getOutputStream();
-        this.inputStream = serialPort.getInputStream();
-        this.readThread = new SerialReadThread();
-        this.readThread.start();
+        this.readThread.startSession(this.readChannel);
+        opens.incrementAndGet();
+        openTime.recordSince(start);
         return false;
     }
 
@@ -170,82 +298,135 @@ public class SerialManager {
      * Close the serial port.
      */
     public synchronized void closeSerialPort(){
-        if(serialPort != null){
-            this.readThread.interrupt();
-            this.readThread = null;
+        cancelIdleClose();
+        if(transport != null){
+            // Closing the read channel below ends the blocked read of the read thread
+            this.readThread.endSession();
             try {
-                this.inputStream.close();
+                if(this.readChannel != null) {
+                    this.readChannel.close();
+                }
             } catch (IOException e) {
             }
             finally {
-                this.inputStream = null;
+                this.readChannel = null;
             }
             try {
-                this.outputStream.close();
+                if(this.writeChannel != null) {
+                    this.writeChannel.close();
+                }
             } catch (IOException e) {
             }
             finally {
-                this.outputStream = null;
+                this.writeChannel = null;
             }
 
-            this.serialPort.close();
-            this.serialPort = null;
-
-            setGPIO(currentInterface, false);
-            if (currentInterface == SerialInterface.PRINTER && isStm32) {
-                setGPIO(SerialInterface.STM32, false);
-            }
-            currentInterface = SerialInterface.NONE;
+            transport.close(serialInterface);
+            transport.setPower(serialInterface, false);
+            transport = null;
         }
+        this.setFrameParser(null);
         this.resetReadBuffer();
     }
 
     /**
-     * Enable/Disable the GPIO configuration for the specified serial interface.
-     * @param serialInterface Serial interface to enable/disable
-     * @param enable Flag if the interface should be enabled or disable.
+     * Wait until the device behind the open serial interface is ready, by repeatedly sending
+     * the probe command until the device gives a valid response. When the device does not
+     * respond in time, this waited the full fallback delay which is the fixed settle time
+     * the device needs. Once the device answered no more probes are sent, and the answers to
+     * earlier probes are drained before the read buffer is reset.
+     * @param probe Readiness handshake of the device.
+     * @param fallbackDelay Time in milliseconds to wait for the device at most.
+     * @return True if the device responded, false if we timed out.
+     * @throws IOException If sending the probe failed.
      */
-    private void setGPIO(SerialInterface serialInterface, boolean enable){
-        String gpioFile = null;
-        Log.i(TAG, String.format("Setting GPIO for %s to %s", serialInterface.toString(), enable ? "ENABLED" : "DISABLED"));
-
-        if(serialInterface == SerialInterface.PRINTER){
-            gpioFile = GPIO_PRINTER;
+    public synchronized boolean awaitReady(ReadinessProbe probe, long fallbackDelay) throws IOException {
+        final long startTime = SystemClock.uptimeMillis();
+        final long deadline = startTime + fallbackDelay;
+        boolean ready = false;
+        long remaining = deadline - startTime;
+        while (!ready && remaining > 0) {
+            final long probeStart = SystemClock.uptimeMillis();
+            write(probe.getCommand());
+            synchronized (readLock) {
+                readWaiters++;
+                try {
+                    // Wait for a valid response, a device that is not ready gets probed again
+                    final long probeDeadline = Math.min(deadline, probeStart + Math.max(PROBE_INTERVAL, 1));
+                    long probeRemaining = probeDeadline - SystemClock.uptimeMillis();
+                    while (!(ready = probe.isReady(readBuffer)) && probeRemaining > 0) {
+                        if (!awaitData(probeRemaining)) {
+                            break;
+                        }
+                        probeRemaining = probeDeadline - SystemClock.uptimeMillis();
+                    }
+                } finally {
+                    readWaiters--;
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            remaining = deadline - SystemClock.uptimeMillis();
+        }
+        if (ready) {
+            // Earlier probes may still be answered, wait for those answers to come in
+            drainResponses(PROBE_INTERVAL, deadline);
         }
-        else if(serialInterface == SerialInterface.STM32){
-            gpioFile = GPIO_STM32;
+        // Bytes of the handshake must not be mistaken for the response to the next command
+        resetReadBuffer();
+
+        final long readyTime = SystemClock.uptimeMillis() - startTime;
+        readinessStatistics.record(readyTime, ready);
+        this.readyTime.record(readyTime * 1000);
+        if (!ready) {
+            readyTimeouts.incrementAndGet();
         }
+        Log.i(TAG, String.format("%s %s after %d ms", serialInterface, ready ? "ready" : "readiness timed out", readyTime));
+        return ready;
+    }
 
-        if(gpioFile != null){
-            FileOutputStream fw = null;
-            FileInputStream fi = null;
-            byte[] buffer = new byte[10];
+    /**
+     * Wait until the device stopped sending, so no late bytes are left after resetting the
+     * read buffer.
+     * @param quietTime Time in milliseconds without new bytes after which the device is done.
+     * @param deadline Uptime in milliseconds after which to stop waiting for a device that
+     *                 keeps sending, at least the quiet time is waited.
+     */
+    private void drainResponses(long quietTime, long deadline) {
+        synchronized (readLock) {
+            readWaiters++;
             try {
-
-                fw = new FileOutputStream(gpioFile);
-                fi = new FileInputStream(gpioFile);
-                fw.write(enable ? GPIO_ENABLE : GPIO_DISABLE);
-                fw.flush();
-                int size = fi.read(buffer);
-                Log.d(TAG, "GPIO=" + DataTools.byteArrayToHex(buffer, size, true));
-            }catch (IOException e){
-                Log.e(TAG, "Exception while trying to set GPIO", e);
-            }
-            finally {
-                if(fw != null) {
-                    try {
-                        fw.close();
-                    } catch (IOException e) {}
-                    try {
-                        fi.close();
-                    } catch (IOException e) {}
+                int received = readBuffer.available();
+                long quietUntil = SystemClock.uptimeMillis() + quietTime;
+                final long limit = Math.max(deadline, quietUntil);
+                long remaining = quietUntil - SystemClock.uptimeMillis();
+                while (remaining > 0 && awaitData(remaining)) {
+                    final long now = SystemClock.uptimeMillis();
+                    if (readBuffer.available() != received) {
+                        received = readBuffer.available();
+                        quietUntil = Math.min(now + quietTime, limit);
+                    }
+                    remaining = quietUntil - now;
                 }
+            } finally {
+                readWaiters--;
             }
-
         }
     }
 
     /**
+     * Get the statistics of the readiness handshakes of the device.
+     * @return Statistics of the handshakes done so far.
+     */
+    public ReadinessStatistics getReadinessStatistics() {
+        return readinessStatistics;
+    }
+
+    /**
+     * Blocks until the device has responded, or the timeouts expired.
+     * The read thread signals every time new bytes arrive, so this returns as soon as the
+     * transmission is complete rather than polling the buffer.
      *
      * @param buffer Buffer to fill
      * @param processingTime Initial time to wait for a response (waiting for device to process and respond to request)
@@ -253,75 +434,208 @@ public class SerialManager {
      * @return Returns the number of bytes that has been saved to the buffer.
      */
     public synchronized int read(byte buffer[], int processingTime, int transmitInterval) {
-        // Here we try and shorten the processing time by actively checking early if the processing is done
-        final int sleepTime = 5;
-
-        // Number of early loops we can do to check for output
-        final int length = processingTime / sleepTime;
+        synchronized (readLock) {
+            // Register as waiter before checking the buffer so the read thread can't miss us
+            readWaiters++;
+            try {
+                // Wait for the start of the transmission
+                long deadline = SystemClock.uptimeMillis() + processingTime;
+                long remaining = processingTime;
+                while (readBuffer.available() == 0 && remaining > 0) {
+                    if (!awaitData(remaining)) {
+                        break;
+                    }
+                    remaining = deadline - SystemClock.uptimeMillis();
+                }
 
-        // Flag if we should stop reading for input
-        boolean shutDown = false;
+                // After the processingTime timeout, we expect some data to be in the buffer already
+                if (readBuffer.available() > 0) {
+                    // Previous number of bytes in the buffer
+                    int previousBufferSize = readBuffer.available();
 
-        for (int i = 0; i < length; i++) {
-            // If we still haven't read anything, sleep a little bit more
-            if (readBufferSize == 0) {
-                SystemClock.sleep(sleepTime);
-                continue;
-            }
-            // We finally got the start of the transmission
-            else {
-                break;
+                    // The transmission is complete once no new bytes arrived within the transmit interval
+                    deadline = SystemClock.uptimeMillis() + transmitInterval;
+                    remaining = transmitInterval;
+                    while (remaining > 0) {
+                        if (!awaitData(remaining)) {
+                            break;
+                        }
+                        final long currentTime = SystemClock.uptimeMillis();
+                        final int currentBufferSize = readBuffer.available();
+                        if (currentBufferSize != previousBufferSize) {
+                            previousBufferSize = currentBufferSize;
+                            deadline = currentTime + transmitInterval;
+                        }
+                        remaining = deadline - currentTime;
+                    }
+                }
+            } finally {
+                readWaiters--;
             }
         }
+        // Copy the read buffer into the output buffer
+        final int readBufferSize = readBuffer.available();
+        if (readBufferSize > buffer.length) {
+            Log.w(TAG, "We have read more bytes than what can fit in the output buffer");
+        }
+        else if (readBufferSize > 0) {
+            readBuffer.peek(buffer, 0, readBufferSize);
+        }
+        return readBufferSize;
+    }
 
-        // After the processingTime timeout, we expect some data to be in the buffer already
-        if (readBufferSize > 0) {
-
-            // Last time data was read from the serial port
-            long lastBufferChangeTime = System.currentTimeMillis();
-
-            // Time right now
-            long currentTime;
-
-            // Previous number of bytes in the buffer
-            int previousBufferSize = 0;
-
-            // Current number of bytes in the buffer
-            int currentBufferSize;
+    /**
+     * Set the parser of the responses of the device behind the open serial interface, the
+     * received bytes are parsed as they arrive so {@link #readFrame(byte[], long, int)} can
+     * return complete responses right away. Closing the serial port removes the parser.
+     * @param parser Parser of the responses, null to stop parsing.
+     */
+    public void setFrameParser(FrameParser parser) {
+        synchronized (readLock) {
+            if (parser != null) {
+                parser.reset();
+            }
+            frameParser = parser;
+            frameLengths.clear();
+        }
+    }
 
-            // While we are not stopping, keep reading
-            while (!shutDown) {
-                currentTime = System.currentTimeMillis();
-                currentBufferSize = readBufferSize;
+    /**
+     * Blocks until a complete response has been received, and moves it out of the read
+     * buffer. A response is complete as soon as the frame parser recognised it, responses
+     * the parser can only recognise by their length are complete once no new bytes arrived
+     * within the transmit interval.
+     * @param buffer Buffer receiving the response.
+     * @param timeout Maximum time in milliseconds to wait for a response.
+     * @param transmitInterval Interval of silence in milliseconds after which the bytes
+     *                         received so far are checked for a complete response.
+     * @return The length of the response, 0 if no complete response was received in time.
+     * @throws IllegalStateException If no frame parser is set.
+     */
+    public int readFrame(byte[] buffer, long timeout, int transmitInterval) {
+        return readFrame(buffer, timeout, transmitInterval, null);
+    }
 
-                // Check if the buffer size has changed
-                if (currentBufferSize > previousBufferSize) {
-                    lastBufferChangeTime = currentTime;
-                    previousBufferSize = currentBufferSize;
-                }
-                // If the buffer size hasn't changed, and we waited more than the transmit interval, the transmission is complete
-                else if (currentBufferSize == previousBufferSize && currentTime - lastBufferChangeTime >= transmitInterval) {
-                    shutDown = true;
-                }
+    /**
+     * Blocks until a complete response has been received like
+     * {@link #readFrame(byte[], long, int)}, but stops waiting as soon as the deadline of
+     * the operation expires or gets cancelled.
+     * @param buffer Buffer receiving the response.
+     * @param timeout Maximum time in milliseconds to wait for a response.
+     * @param transmitInterval Interval of silence in milliseconds after which the bytes
+     *                         received so far are checked for a complete response.
+     * @param operationDeadline Deadline of the operation, null if it has none.
+     * @return The length of the response, 0 if no complete response was received in time.
+     * @throws IllegalStateException If no frame parser is set.
+     */
+    public int readFrame(byte[] buffer, long timeout, int transmitInterval, Deadline operationDeadline) {
+        synchronized (readLock) {
+            final FrameParser parser = frameParser;
+            if (parser == null) {
+                throw new IllegalStateException("No frame parser set");
             }
-            // Copy the read buffer into the output buffer
-            if (readBufferSize <= buffer.length) {
-                System.arraycopy(readBuffer, 0, buffer, 0, readBufferSize);
+            // Register as waiter before checking the buffer so the read thread can't miss us
+            readWaiters++;
+            try {
+                final long deadline = SystemClock.uptimeMillis()
+                        + (operationDeadline == null ? timeout : operationDeadline.remaining(timeout));
+                int previousBufferSize = readBuffer.available();
+                long silentSince = SystemClock.uptimeMillis();
+                boolean flushed = false;
+                while (frameLengths.isEmpty()) {
+                    final long currentTime = SystemClock.uptimeMillis();
+                    final int currentBufferSize = readBuffer.available();
+                    if (currentBufferSize != previousBufferSize) {
+                        previousBufferSize = currentBufferSize;
+                        silentSince = currentTime;
+                        flushed = false;
+                    }
+                    long waitTime = deadline - currentTime;
+                    if (currentBufferSize > 0 && !flushed) {
+                        final long silence = currentTime - silentSince;
+                        if (silence >= transmitInterval) {
+                            // Only check the pending bytes once per silence
+                            flushed = true;
+                            final int length = parser.flush();
+                            if (length > 0) {
+                                frameLengths.add(length);
+                                break;
+                            }
+                        } else {
+                            waitTime = Math.min(waitTime, transmitInterval - silence);
+                        }
+                    }
+                    if (operationDeadline != null && operationDeadline.isCancelled()) {
+                        return 0;
+                    }
+                    if (waitTime <= 0 || !awaitData(waitTime)) {
+                        readTimeouts.incrementAndGet();
+                        return 0;
+                    }
+                }
+            } finally {
+                readWaiters--;
             }
-            else{
-                Log.w(TAG, "We have read more bytes than what can fit in the output buffer");
+
+            final int length = frameLengths.poll();
+            if (length > buffer.length) {
+                Log.w(TAG, String.format("Dropped a response of %d bytes that does not fit in the output buffer", length));
+                readBuffer.skip(length);
+                return 0;
             }
+            readBuffer.peek(buffer, 0, length);
+            readBuffer.skip(length);
+            framesRead.incrementAndGet();
+            return length;
+        }
+    }
+
+    /**
+     * Wake up the threads waiting for data, to let them check the deadline of their operation.
+     */
+    void wakeUpReaders() {
+        synchronized (readLock) {
+            readLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait on the read lock until the read thread signals new data, or the timeout expires.
+     * Must be called while holding the read lock.
+     * @param timeout Maximum time to wait in milliseconds.
+     * @return False if the waiting thread got interrupted.
+     */
+    private boolean awaitData(long timeout) {
+        try {
+            readLock.wait(timeout);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
-        return readBufferSize;
     }
 
 
     /**
      * Reset the read buffer to the start
      */
-    private synchronized void resetReadBuffer(){
+    private void resetReadBuffer(){
         Log.d(TAG, "Reset read buffer to start");
-        readBufferSize = 0;
+        if (readBuffer.available() > 0) {
+            discardingResets.incrementAndGet();
+        }
+        if (frameParser == null) {
+            readBuffer.clear();
+            return;
+        }
+        // The parser must not be left with bytes that are no longer in the buffer
+        synchronized (readLock) {
+            readBuffer.clear();
+            if (frameParser != null) {
+                frameParser.reset();
+            }
+            frameLengths.clear();
+        }
     }
 
     /**
@@ -330,8 +644,143 @@ public class SerialManager {
      * @throws IOException
      */
     public synchronized void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a new command over the serial port in a single write
+     * @param bytes Buffer containing the command
+     * @param offset Offset of the command in the buffer
+     * @param length Length of the command
+     * @throws IOException
+     */
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        write(bytes, offset, length, null);
+    }
+
+    /**
+     * Writes a new command over the serial port in a single write, unless the deadline of
+     * the operation expired or got cancelled.
+     * @param bytes Buffer containing the command
+     * @param offset Offset of the command in the buffer
+     * @param length Length of the command
+     * @param operationDeadline Deadline of the operation, null if it has none
+     * @throws InterruptedIOException If the deadline expired or got cancelled
+     * @throws IOException
+     */
+    public synchronized void write(byte[] bytes, int offset, int length, Deadline operationDeadline) throws IOException {
+        checkDeadline(operationDeadline);
         resetReadBuffer();
-        this.outputStream.write(bytes);
+        writeFully(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Writes a new command made of several buffers over the serial port in a single
+     * gathering write, unless the deadline of the operation expired or got cancelled.
+     * @param buffers Buffers holding the parts of the command, their positions are moved
+     *                past the written bytes
+     * @param operationDeadline Deadline of the operation, null if it has none
+     * @throws InterruptedIOException If the deadline expired or got cancelled
+     * @throws IOException
+     */
+    public synchronized void write(ByteBuffer[] buffers, Deadline operationDeadline) throws IOException {
+        checkDeadline(operationDeadline);
+        resetReadBuffer();
+        writeFully(buffers);
+    }
+
+    /**
+     * Writes more data over the serial port without resetting the read buffer, so the
+     * responses to everything written since the last {@link #write(byte[])} are kept.
+     * @param bytes Buffer containing the data
+     * @param offset Offset of the data in the buffer
+     * @param length Length of the data
+     * @throws IOException
+     */
+    public synchronized void append(byte[] bytes, int offset, int length) throws IOException {
+        append(bytes, offset, length, null);
+    }
+
+    /**
+     * Writes more data over the serial port like {@link #append(byte[], int, int)}, unless
+     * the deadline of the operation expired or got cancelled.
+     * @param bytes Buffer containing the data
+     * @param offset Offset of the data in the buffer
+     * @param length Length of the data
+     * @param operationDeadline Deadline of the operation, null if it has none
+     * @throws InterruptedIOException If the deadline expired or got cancelled
+     * @throws IOException
+     */
+    public synchronized void append(byte[] bytes, int offset, int length, Deadline operationDeadline) throws IOException {
+        checkDeadline(operationDeadline);
+        writeFully(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Writes more data made of several buffers over the serial port in a single gathering
+     * write, without resetting the read buffer, unless the deadline of the operation expired
+     * or got cancelled.
+     * @param buffers Buffers holding the parts of the data, their positions are moved past
+     *                the written bytes
+     * @param operationDeadline Deadline of the operation, null if it has none
+     * @throws InterruptedIOException If the deadline expired or got cancelled
+     * @throws IOException
+     */
+    public synchronized void append(ByteBuffer[] buffers, Deadline operationDeadline) throws IOException {
+        checkDeadline(operationDeadline);
+        writeFully(buffers);
+    }
+
+    /**
+     * Write all the remaining bytes of a buffer to the write channel.
+     * @param buffer Buffer holding the bytes
+     * @throws IOException If writing failed or the serial port got closed
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        final int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            if (this.writeChannel.write(buffer) == 0) {
+                throw new IOException("Serial port closed while writing");
+            }
+        }
+        bytesOut.addAndGet(length);
+    }
+
+    /**
+     * Write all the remaining bytes of a sequence of buffers to the write channel.
+     * @param buffers Buffers holding the bytes
+     * @throws IOException If writing failed or the serial port got closed
+     */
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        long written = 0;
+        while (written < length) {
+            final long count = this.writeChannel.write(buffers);
+            if (count == 0) {
+                throw new IOException("Serial port closed while writing");
+            }
+            written += count;
+        }
+        bytesOut.addAndGet(length);
+    }
+
+    /**
+     * @param operationDeadline Deadline of the operation, null if it has none
+     * @throws InterruptedIOException If the deadline expired or got cancelled
+     */
+    private static void checkDeadline(Deadline operationDeadline) throws InterruptedIOException {
+        if (operationDeadline == null) {
+            return;
+        }
+        if (operationDeadline.isCancelled()) {
+            throw new InterruptedIOException("Operation cancelled");
+        }
+        if (operationDeadline.hasExpired()) {
+            throw new InterruptedIOException("Operation deadline expired");
+        }
     }
 
     /**
@@ -339,17 +788,92 @@ public class SerialManager {
      * @return
      */
     public int getReadBufferSize(){
-        return this.readBufferSize;
+        return this.readBuffer.available();
     }
 
     /**
-     * Get the current buffer
+     * Get a view of the bytes read since the last write. Must only be used by the thread
+     * that is communicating over the serial port.
      * @return
      */
-    public byte[] getReadBuffer(){
+    public ByteRingBuffer getReadBuffer(){
         return this.readBuffer;
     }
 
+    /**
+     * Returns the number of received bytes that were dropped because the read buffer was full.
+     * @return
+     */
+    public long getReadBufferOverflowCount(){
+        return this.readBuffer.getOverflowCount();
+    }
+
+    /**
+     * Time it took devices to become ready after opening a serial interface.
+     */
+    public static class ReadinessStatistics {
+
+        private int count = 0;
+        private int timeouts = 0;
+        private long lastTime = 0;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = 0;
+        private long totalTime = 0;
+
+        synchronized void record(long time, boolean ready) {
+            count++;
+            if (!ready) {
+                timeouts++;
+            }
+            lastTime = time;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            totalTime += time;
+        }
+
+        /**
+         * @return Number of readiness handshakes.
+         */
+        public synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * @return Number of handshakes that fell back to the fixed settle time.
+         */
+        public synchronized int getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * @return Time in milliseconds of the last handshake.
+         */
+        public synchronized long getLastTime() {
+            return lastTime;
+        }
+
+        /**
+         * @return Shortest handshake in milliseconds, 0 if there were none.
+         */
+        public synchronized long getMinTime() {
+            return count == 0 ? 0 : minTime;
+        }
+
+        /**
+         * @return Longest handshake in milliseconds.
+         */
+        public synchronized long getMaxTime() {
+            return maxTime;
+        }
+
+        /**
+         * @return Average handshake time in milliseconds.
+         */
+        public synchronized long getAverageTime() {
+            return count == 0 ? 0 : totalTime / count;
+        }
+    }
+
     /**
      * Thread responsible for reading data from the serial port.
      */
@@ -357,45 +881,217 @@ public class SerialManager {
 
         private static final String TAG = "SerialReadThread";
 
+        /**
+         * Read channel of the current session, null while the serial port is closed.
+         */
+        private volatile ReadableByteChannel channel;
+
+        /**
+         * Priority last applied to the thread.
+         */
+        private int appliedPriority = Process.THREAD_PRIORITY_DEFAULT;
+
         public SerialReadThread(){
+            super(TAG + " " + serialInterface);
+            // The thread outlives the sessions, it must not keep the process alive
+            setDaemon(true);
+        }
+
+        /**
+         * Start reading the read channel of a new session.
+         * @param channel Read channel of the serial port that was opened.
+         */
+        synchronized void startSession(ReadableByteChannel channel) {
+            this.channel = channel;
+            notifyAll();
+        }
+
+        /**
+         * End the current session, the read thread parks once its read of the channel
+         * returns, which happens when the channel gets closed.
+         */
+        synchronized void endSession() {
+            this.channel = null;
         }
 
         @Override
         public void run() {
-            byte[] buffer = new byte[1024];
-            while (!isInterrupted()) {
-                // If there is no input stream, there is nothing further for this thread to do
-                if (inputStream == null) {
+            while (true) {
+                final ReadableByteChannel channel;
+                try {
+                    channel = awaitSession();
+                } catch (InterruptedException e) {
                     return;
                 }
+                applyPriority();
+                readSession(channel);
+                // A failed read ends the session, until the serial port is opened again
+                synchronized (this) {
+                    if (this.channel == channel) {
+                        this.channel = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Park until a session starts.
+         * @return Read channel of the session.
+         * @throws InterruptedException If the thread got interrupted while parked.
+         */
+        private synchronized ReadableByteChannel awaitSession() throws InterruptedException {
+            while (channel == null) {
+                wait();
+            }
+            return channel;
+        }
+
+        /**
+         * Apply the read thread priority of the registry when it changed. Android only lets
+         * a thread change its own priority with {@link Process#setThreadPriority(int)}.
+         */
+        private void applyPriority() {
+            final int priority = registry.getReadThreadPriority();
+            if (priority == appliedPriority) {
+                return;
+            }
+            try {
+                Process.setThreadPriority(priority);
+                appliedPriority = priority;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not set the read thread priority to " + priority, e);
+                appliedPriority = priority;
+            }
+        }
+
+        /**
+         * Read the channel of a session until it gets closed. Nothing is allocated per read,
+         * unless debug logging is enabled.
+         * @param channel Read channel of the session.
+         */
+        private void readSession(ReadableByteChannel channel) {
+            long overflowCount = readBuffer.getOverflowCount();
+            while (this.channel == channel) {
                 try {
-                    // This read will throw an exception when the input stream is closed while
-                    // waiting for input - that is normal
-                    int length = inputStream.read(buffer);
+                    // The bytes are read straight into the read buffer. This read will throw an
+                    // exception when the channel is closed while waiting for input - that is normal
+                    int length = readBuffer.receive(channel);
+                    // The transport reached the end of its stream, it has been closed
+                    if(length < 0) {
+                        return;
+                    }
+                    // Bytes that arrived while the session ended belong to no one
+                    if (this.channel != channel) {
+                        return;
+                    }
+                    // Whatever did not fit in the read buffer got dropped and counted
+                    final long dropped = readBuffer.getOverflowCount() - overflowCount;
+                    if (dropped > 0) {
+                        overflowCount += dropped;
+                        Log.w(TAG, String.format("Read buffer full, dropped %d bytes", dropped));
+                        droppedBytes.addAndGet(dropped);
+                        bytesIn.addAndGet(dropped);
+                    }
                     if(length > 0) {
-                        Log.d(TAG, String.format("Read %d bytes", length));
+                        // Only format the received data when debug logging is enabled
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            final byte[] data = new byte[length];
+                            for (int i = 0; i < length; i++) {
+                                data[i] = readBuffer.getReceived(i);
+                            }
+                            Log.d(TAG, String.format("Read %d bytes", length));
+                            Log.d(TAG, "Data=" + DataTools.byteArrayToHex(data, length, true));
+                        }
 
-                        // If we don't have enough space in our buffer to save the data, we clear it
-                        // and start over
-                        if(length + readBufferSize > readBuffer.length){
-                            Log.d(TAG, "Not enough space in readBuffer for next data, resetting.");
-                            resetReadBuffer();
+                        if (frameParser == null) {
+                            readBuffer.commit(length);
+                        }
+                        else {
+                            commitAndParse(length);
+                        }
+                        bytesIn.addAndGet(length);
+
+                        // Wake up anyone waiting for a response
+                        if (readWaiters > 0) {
+                            synchronized (readLock) {
+                                readLock.notifyAll();
+                            }
                         }
-                        // Copy read bytes into buffer
-                        System.arraycopy(buffer, 0, readBuffer, readBufferSize, length);
-                        readBufferSize += length;
-                        Log.d(TAG, "ReadBuffer=" + DataTools.byteArrayToHex(readBuffer, readBufferSize, true));
                     }
                 }
                 // The null pointer can happen when the serial port is closed, and we are still trying to read from it
                 catch (NullPointerException e) {
-                    Log.e(TAG, "NullPointerException while reading input stream", e);
+                    if (this.channel == channel) {
+                        Log.e(TAG, "NullPointerException while reading the read channel", e);
+                    }
                     return;
                 }catch (IOException e) {
-                    Log.e(TAG, "Exception while reading input stream", e);
+                    if (this.channel == channel) {
+                        Log.e(TAG, "Exception while reading the read channel", e);
+                    }
                     return;
                 }
             }
         }
+
+        /**
+         * Feed the received bytes to the frame parser and commit them to the read buffer, in
+         * one step so a reset of the read buffer can't come in between.
+         * @param length Number of bytes that were received.
+         */
+        private void commitAndParse(int length) {
+            synchronized (readLock) {
+                final FrameParser parser = frameParser;
+                if (parser != null) {
+                    for (int i = 0; i < length; i++) {
+                        final int frameLength = parser.feed(readBuffer.getReceived(i));
+                        if (frameLength > 0) {
+                            frameLengths.add(frameLength);
+                        }
+                    }
+                }
+                readBuffer.commit(length);
+            }
+        }
+    }
+
+    /**
+     * Queue of ints, so queueing the frame lengths does not box them.
+     */
+    private static class IntQueue {
+
+        private int[] values = new int[16];
+        private int head = 0;
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                // More frames than ever before are waiting, make room for them
+                final int[] grown = new int[values.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = values[(head + i) % values.length];
+                }
+                values = grown;
+                head = 0;
+            }
+            values[(head + size) % values.length] = value;
+            size++;
+        }
+
+        int poll() {
+            final int value = values[head];
+            head = (head + 1) % values.length;
+            size--;
+            return value;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
     }
 }
@@ -0,0 +1,224 @@
+package coza.opencollab.cpos800.serial;
+
+import android.os.Process;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Registry of the serial ports of the device. The NFC reader and the printer are on
+ * separate UARTs, so every serial port has its own {@link SerialManager} with its own read
+ * thread, read buffer and lifecycle, and the devices can be used at the same time.
+ *
+ * The registry holds what the serial ports share: the transport reaching them, the
+ * keep-alive session mode, the executor closing idle serial ports and the priority of the
+ * read threads, as well as the profile every serial port is opened with.
+ */
+public class SerialPortRegistry {
+
+    /**
+     * Reference to the singleton registry
+     */
+    private static volatile SerialPortRegistry instance;
+
+    /**
+     * Serial manager of every serial port, created when first used.
+     */
+    private final Map<SerialManager.SerialInterface, SerialManager> ports =
+            new EnumMap<SerialManager.SerialInterface, SerialManager>(SerialManager.SerialInterface.class);
+
+    /**
+     * Profile of every serial port, the default profile until another one is set.
+     */
+    private final Map<SerialManager.SerialInterface, PortProfile> profiles =
+            new EnumMap<SerialManager.SerialInterface, PortProfile>(SerialManager.SerialInterface.class);
+
+    /**
+     * Transport used to reach the serial interfaces.
+     */
+    private volatile Transport transport = new NativeTransport();
+
+    /**
+     * Time in milliseconds a released serial port stays open before it is closed.
+     * 0 closes the serial port as soon as it is released.
+     */
+    private volatile long idleTimeout = 0;
+
+    /**
+     * Linux priority of the read threads of the serial ports.
+     */
+    private volatile int readThreadPriority = Process.THREAD_PRIORITY_URGENT_AUDIO;
+
+    /**
+     * Executor closing serial ports that have been idle for longer than the idle timeout.
+     */
+    private final ScheduledExecutorService idleExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Get an instance of the registry
+     * @return instance of the registry.
+     */
+    public static SerialPortRegistry getInstance(){
+        if(instance == null){
+            synchronized (SerialPortRegistry.class) {
+                if(instance == null) {
+                    instance = new SerialPortRegistry();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Private constructor to the registry
+     */
+    private SerialPortRegistry(){}
+
+    /**
+     * Get the serial manager of a serial port.
+     * @param serialInterface Serial interface of the serial port, NFC or PRINTER.
+     * @return The serial manager of the serial port.
+     * @throws IllegalArgumentException If the serial interface is not a serial port.
+     */
+    public SerialManager getPort(SerialManager.SerialInterface serialInterface) {
+        if (serialInterface != SerialManager.SerialInterface.NFC && serialInterface != SerialManager.SerialInterface.PRINTER) {
+            throw new IllegalArgumentException("Not a serial port: " + serialInterface);
+        }
+        synchronized (ports) {
+            SerialManager port = ports.get(serialInterface);
+            if (port == null) {
+                port = new SerialManager(this, serialInterface);
+                ports.put(serialInterface, port);
+            }
+            return port;
+        }
+    }
+
+    /**
+     * Replace the transport used to reach the serial interfaces, for example with a
+     * {@link SimulatedTransport} when running without the CPOS800 hardware.
+     * All the open serial ports are closed first.
+     * @param transport Transport to use from now on.
+     */
+    public void setTransport(Transport transport) {
+        for (SerialManager port : getPorts()) {
+            port.closeSerialPort();
+        }
+        this.transport = transport;
+    }
+
+    /**
+     * @return Transport used to reach the serial interfaces.
+     */
+    Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Replace the profile a serial port is opened with. The serial port is closed when it
+     * is open, so the profile applies from the next operation on.
+     * @param serialInterface Serial interface of the serial port, NFC or PRINTER.
+     * @param profile Profile to open the serial port with.
+     * @throws IllegalArgumentException If the serial interface is not a serial port.
+     */
+    public void setProfile(SerialManager.SerialInterface serialInterface, PortProfile profile) {
+        final SerialManager port = getPort(serialInterface);
+        synchronized (profiles) {
+            profiles.put(serialInterface, profile);
+        }
+        port.closeSerialPort();
+    }
+
+    /**
+     * Get the profile a serial port is opened with.
+     * @param serialInterface Serial interface of the serial port, NFC or PRINTER.
+     * @return Profile of the serial port.
+     * @throws IllegalArgumentException If the serial interface is not a serial port.
+     */
+    public PortProfile getProfile(SerialManager.SerialInterface serialInterface) {
+        synchronized (profiles) {
+            PortProfile profile = profiles.get(serialInterface);
+            if (profile == null) {
+                profile = PortProfile.getDefault(serialInterface);
+                profiles.put(serialInterface, profile);
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * Configure the keep-alive session mode. When enabled, a released serial port stays
+     * open and powered until it was not used for the idle timeout, so operations following
+     * each other quickly reuse the open serial port.
+     * @param idleTimeout Time in milliseconds to keep an idle serial port open, 0 to disable.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+        // Serial ports kept open by the previous setting get closed or rescheduled
+        for (SerialManager port : getPorts()) {
+            port.rescheduleIdleClose();
+        }
+    }
+
+    /**
+     * @return Time in milliseconds a released serial port stays open, 0 if disabled.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the priority of the read threads. A high priority keeps the time between a
+     * response arriving and the waiting operation seeing it short when the app is busy.
+     * The priority applies from the next time a serial port is opened.
+     * @param readThreadPriority Linux priority, from -20 for the most urgent to 19, such as
+     *                           {@link Process#THREAD_PRIORITY_URGENT_AUDIO}.
+     */
+    public void setReadThreadPriority(int readThreadPriority) {
+        this.readThreadPriority = Math.max(-20, Math.min(19, readThreadPriority));
+    }
+
+    /**
+     * @return Linux priority of the read threads.
+     */
+    public int getReadThreadPriority() {
+        return readThreadPriority;
+    }
+
+    /**
+     * @return Executor closing idle serial ports.
+     */
+    ScheduledExecutorService getIdleExecutor() {
+        return idleExecutor;
+    }
+
+    /**
+     * Close the serial ports that are only kept open by the keep-alive session mode.
+     */
+    public void closeIdleSerialPorts() {
+        for (SerialManager port : getPorts()) {
+            port.closeIdleSerialPort();
+        }
+    }
+
+    /**
+     * Wake up the threads waiting for data on any serial port, to let them check the
+     * deadline of their operation.
+     */
+    void wakeUpReaders() {
+        for (SerialManager port : getPorts()) {
+            port.wakeUpReaders();
+        }
+    }
+
+    /**
+     * @return The serial managers created so far.
+     */
+    private SerialManager[] getPorts() {
+        synchronized (ports) {
+            return ports.values().toArray(new SerialManager[ports.size()]);
+        }
+    }
+}
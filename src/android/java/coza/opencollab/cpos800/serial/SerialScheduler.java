@@ -0,0 +1,317 @@
+package coza.opencollab.cpos800.serial;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scheduler owning the serial ports. Every serial port has its own worker thread, the
+ * operations on a serial port run one after the other on its worker so one operation can
+ * never close the serial port from under another, while operations on different serial
+ * ports run at the same time.
+ *
+ * The next operation of a serial port is the one with the highest priority, operations
+ * with the same priority run in the order they were submitted.
+ *
+ * Long running operations call {@link #pause(int, long, Deadline)} between their steps, to
+ * let waiting operations on the same serial port with a higher priority go first.
+ */
+public class SerialScheduler {
+
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "SerialScheduler";
+
+    /**
+     * Priority of background operations, like scanning for cards.
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    /**
+     * Priority of regular operations, like reading a card or printing.
+     */
+    public static final int PRIORITY_NORMAL = 5;
+
+    /**
+     * Reference to the singleton scheduler
+     */
+    private static volatile SerialScheduler instance;
+
+    /**
+     * Worker of every serial port, created when the first operation is submitted.
+     */
+    private final Map<SerialManager.SerialInterface, Worker> workers =
+            new EnumMap<SerialManager.SerialInterface, Worker>(SerialManager.SerialInterface.class);
+
+    /**
+     * Get an instance of the scheduler
+     * @return instance of the scheduler.
+     */
+    public static SerialScheduler getInstance(){
+        if(instance == null){
+            synchronized (SerialScheduler.class) {
+                if(instance == null) {
+                    instance = new SerialScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Private constructor to the scheduler
+     */
+    private SerialScheduler(){}
+
+    /**
+     * Submit an operation.
+     * @param serialInterface Serial interface the operation uses.
+     * @param priority Priority of the operation, one of the PRIORITY constants.
+     * @param task The operation.
+     */
+    public void submit(SerialManager.SerialInterface serialInterface, int priority, Runnable task) {
+        final Worker worker;
+        synchronized (workers) {
+            Worker existing = workers.get(serialInterface);
+            if (existing == null) {
+                existing = new Worker(serialInterface);
+                workers.put(serialInterface, existing);
+            }
+            worker = existing;
+        }
+        worker.submit(priority, task);
+    }
+
+    /**
+     * Pause the calling operation, running waiting operations on its serial port with a higher
+     * priority in the meantime. Operations submitted during the pause start right away instead
+     * of waiting for the pause to end. May only be called from a running operation, at a point
+     * where it is safe for the other operations to use the serial port. The calling operation
+     * must reopen its serial interface when this returns true.
+     * @param priority Priority of the calling operation.
+     * @param time Time in milliseconds to pause.
+     * @return True if other operations ran.
+     */
+    public boolean pause(int priority, long time) {
+        return pause(priority, time, null);
+    }
+
+    /**
+     * Pause the calling operation like {@link #pause(int, long)}, but end the pause as soon
+     * as the deadline of the operation expires or gets cancelled.
+     * @param priority Priority of the calling operation.
+     * @param time Time in milliseconds to pause.
+     * @param operationDeadline Deadline of the calling operation, null if it has none.
+     * @return True if other operations ran.
+     */
+    public boolean pause(int priority, long time, Deadline operationDeadline) {
+        final long deadline = SystemClock.uptimeMillis() + time;
+        long remaining = limit(time, operationDeadline);
+        final Worker worker = currentWorker();
+        if (worker == null) {
+            synchronized (workers) {
+                while (remaining > 0) {
+                    try {
+                        workers.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    remaining = limit(deadline - SystemClock.uptimeMillis(), operationDeadline);
+                }
+            }
+            return false;
+        }
+        boolean yielded = false;
+        while (remaining > 0) {
+            final Operation operation = worker.take(priority, remaining, operationDeadline);
+            if (operation != null) {
+                Log.d(TAG, "Yielding to " + worker.serialInterface + " operation");
+                worker.run(operation);
+                yielded = true;
+            }
+            remaining = limit(deadline - SystemClock.uptimeMillis(), operationDeadline);
+        }
+        return yielded;
+    }
+
+    /**
+     * Wake up the paused operations, to let them check their deadline.
+     */
+    void wakeUp() {
+        final Worker[] current;
+        synchronized (workers) {
+            workers.notifyAll();
+            current = workers.values().toArray(new Worker[workers.size()]);
+        }
+        for (Worker worker : current) {
+            worker.wakeUp();
+        }
+    }
+
+    /**
+     * @return Worker running on the calling thread, null if the caller is not a worker.
+     */
+    private Worker currentWorker() {
+        synchronized (workers) {
+            for (Worker worker : workers.values()) {
+                if (worker.isCurrentThread()) {
+                    return worker;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Limit a time to the deadline of an operation.
+     * @param time Time in milliseconds.
+     * @param operationDeadline Deadline of the operation, null if it has none.
+     * @return The time, or the time left until the deadline when that is shorter.
+     */
+    private static long limit(long time, Deadline operationDeadline) {
+        return operationDeadline == null ? time : operationDeadline.remaining(time);
+    }
+
+    /**
+     * Worker thread running the operations of a serial port.
+     */
+    private static class Worker {
+
+        private final SerialManager.SerialInterface serialInterface;
+
+        /**
+         * Operations waiting to run.
+         */
+        private final List<Operation> queue = new ArrayList<Operation>();
+
+        /**
+         * Sequence number of the next submitted operation.
+         */
+        private long sequence = 0;
+
+        /**
+         * Thread running the operations.
+         */
+        private Thread thread;
+
+        Worker(SerialManager.SerialInterface serialInterface) {
+            this.serialInterface = serialInterface;
+        }
+
+        void submit(int priority, Runnable task) {
+            synchronized (queue) {
+                queue.add(new Operation(priority, sequence++, task));
+                if (thread == null) {
+                    thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            runOperations();
+                        }
+                    }, TAG + " " + serialInterface);
+                    thread.start();
+                }
+                queue.notifyAll();
+            }
+        }
+
+        boolean isCurrentThread() {
+            synchronized (queue) {
+                return Thread.currentThread() == thread;
+            }
+        }
+
+        void wakeUp() {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+
+        /**
+         * Main loop of the worker thread.
+         */
+        private void runOperations() {
+            while (true) {
+                final Operation operation = take(Integer.MIN_VALUE, -1, null);
+                if (operation == null) {
+                    return;
+                }
+                run(operation);
+            }
+        }
+
+        void run(Operation operation) {
+            try {
+                operation.task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception while running " + serialInterface + " operation", e);
+            }
+        }
+
+        /**
+         * Take the next operation to run from the queue.
+         * @param minimumPriority Only operations with a higher priority are taken.
+         * @param timeout Time in milliseconds to wait for an operation to be submitted, 0 to not
+         *                wait and a negative value to wait for as long as it takes.
+         * @param operationDeadline Deadline of the calling operation, waiting ends when it expired,
+         *                          null if it has none.
+         * @return The operation, or null if there is none.
+         */
+        Operation take(int minimumPriority, long timeout, Deadline operationDeadline) {
+            final long deadline = SystemClock.uptimeMillis() + timeout;
+            synchronized (queue) {
+                while (true) {
+                    Operation next = null;
+                    for (Operation operation : queue) {
+                        if (operation.priority > minimumPriority && (next == null || operation.runsBefore(next))) {
+                            next = operation;
+                        }
+                    }
+                    if (next != null) {
+                        queue.remove(next);
+                        return next;
+                    }
+                    final long remaining = deadline - SystemClock.uptimeMillis();
+                    if (timeout == 0 || (timeout > 0 && remaining <= 0)
+                            || (operationDeadline != null && operationDeadline.hasExpired())) {
+                        return null;
+                    }
+                    try {
+                        queue.wait(timeout > 0 ? remaining : 0);
+                    } catch (InterruptedException e) {
+                        thread = null;
+                        return null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Operation waiting to run.
+     */
+    private static class Operation {
+
+        private final int priority;
+        private final long sequence;
+        private final Runnable task;
+
+        Operation(int priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        boolean runsBefore(Operation other) {
+            if (priority != other.priority) {
+                return priority > other.priority;
+            }
+            return sequence < other.sequence;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package coza.opencollab.cpos800.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory transport emulating the NFC reader and printer of a CPOS800.
+ *
+ * The simulated devices answer the same commands as the hardware, with a configurable
+ * response latency and a line speed limited to the configured baud rate. It does not use
+ * any Android classes, so the APIs can be exercised and benchmarked on a plain JVM.
+ */
+public class SimulatedTransport implements Transport {
+
+    /**
+     * Printer status when the printing completed.
+     */
+    public static final byte PRINTER_STATUS_DONE = 0x08;
+
+    /**
+     * Printer status when the printer is out of paper.
+     */
+    public static final byte PRINTER_STATUS_OUT_OF_PAPER = 0x01;
+
+    /**
+     * Printer status when the printer is too hot.
+     */
+    public static final byte PRINTER_STATUS_TOO_HOT = 0x04;
+
+    /**
+     * Command sent by the NFC api to read the id of a card.
+     */
+    private static final byte[] CMD_GET_ID = {0x08, 0x00, 0x01, 0x01, (byte)0xe3};
+
+    /**
+     * Response of the NFC reader when there is no card in the field.
+     */
+    private static final byte[] RESPONSE_NO_CARD = {0x08, 0x01, 0x00, 0x04};
+
+    /**
+     * Header of a frame sent to the printer.
+     */
+    private static final byte[] PRINTER_HEADER = { (byte) 0xCA, (byte) 0xDF, (byte) 0x00, (byte) 0x35 };
+
+    /**
+     * Real-time status request (DLE EOT) sent to the printer.
+     */
+    private static final byte[] PRINTER_STATUS_REQUEST = { 0x10, 0x04 };
+
+    /**
+     * Response of the printer to a status request when it is online.
+     */
+    private static final byte PRINTER_STATUS_ONLINE = 0x12;
+
+    /**
+     * Number of bits sent over the line per byte (start + 8 data + stop).
+     */
+    private static final int BITS_PER_BYTE = 10;
+
+    /**
+     * Sends the responses of the simulated devices. Its thread is a daemon, so a simulator
+     * that is not used anymore does not keep the process alive.
+     */
+    private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "SimulatedTransport");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Channels of the open serial interfaces, the simulated devices have separate lines.
+     */
+    private final Map<SerialManager.SerialInterface, StreamChannel> channels =
+            new EnumMap<SerialManager.SerialInterface, StreamChannel>(SerialManager.SerialInterface.class);
+
+    private volatile int baudrate = 230400;
+
+    private volatile int latency = 5;
+
+    private volatile int printingTime = 50;
+
+    private volatile byte printerStatus = PRINTER_STATUS_DONE;
+
+    private volatile byte[] cardId = null;
+
+    /**
+     * Number of commands the simulated devices have received and recognised.
+     */
+    private final AtomicInteger commandsReceived = new AtomicInteger();
+
+    /**
+     * Set the speed of the simulated line, used to throttle the data in both directions.
+     * @param baudrate Baud rate, 0 for an unlimited line speed.
+     */
+    public void setBaudrate(int baudrate) {
+        this.baudrate = baudrate;
+    }
+
+    /**
+     * Set the time the simulated devices take before responding to a command.
+     * @param latency Latency in milliseconds.
+     */
+    public void setLatency(int latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Set the time the simulated printer takes to print a frame.
+     * @param printingTime Printing time in milliseconds.
+     */
+    public void setPrintingTime(int printingTime) {
+        this.printingTime = printingTime;
+    }
+
+    /**
+     * Set the status the simulated printer reports once it printed a frame.
+     * @param printerStatus One of the PRINTER_STATUS constants.
+     */
+    public void setPrinterStatus(byte printerStatus) {
+        this.printerStatus = printerStatus;
+    }
+
+    /**
+     * Present a card to the simulated NFC reader.
+     * @param cardId Id of the card, null to remove the card from the field.
+     */
+    public void presentCard(byte[] cardId) {
+        this.cardId = cardId == null ? null : cardId.clone();
+    }
+
+    /**
+     * @return Number of commands the simulated devices have received and recognised.
+     */
+    public int getCommandsReceived() {
+        return commandsReceived.get();
+    }
+
+    @Override
+    public void setPower(SerialManager.SerialInterface serialInterface, boolean enable) {
+        // Simulated devices are always powered
+    }
+
+    /**
+     * The line settings of the profile are ignored, the simulated link runs at the baud
+     * rate given to {@link #setBaudrate(int)}.
+     */
+    @Override
+    public synchronized void open(SerialManager.SerialInterface serialInterface, PortProfile profile) throws IOException {
+        if (channels.containsKey(serialInterface)) {
+            throw new IOException("Simulated " + serialInterface + " is already open");
+        }
+        final DeviceInputStream inputStream = new DeviceInputStream();
+        channels.put(serialInterface, new StreamChannel(inputStream, new DeviceOutputStream(serialInterface, inputStream)));
+    }
+
+    @Override
+    public synchronized ReadableByteChannel getReadChannel(SerialManager.SerialInterface serialInterface) {
+        return channels.get(serialInterface);
+    }
+
+    @Override
+    public synchronized GatheringByteChannel getWriteChannel(SerialManager.SerialInterface serialInterface) {
+        return channels.get(serialInterface);
+    }
+
+    /**
+     * Closing the channel closes the line to the host, a device that is switched off does
+     * not send the responses it still had pending.
+     */
+    @Override
+    public synchronized void close(SerialManager.SerialInterface serialInterface) {
+        final StreamChannel channel = channels.remove(serialInterface);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * @param length Number of bytes.
+     * @return Time in milliseconds it takes to send the bytes over the simulated line.
+     */
+    private long transmitTime(int length) {
+        final int currentBaudrate = baudrate;
+        if (currentBaudrate <= 0) {
+            return 0;
+        }
+        return (long) length * BITS_PER_BYTE * 1000 / currentBaudrate;
+    }
+
+    /**
+     * Send a response from the simulated device to the host.
+     * @param target Input stream of the host at the time the command was received.
+     * @param response Bytes to send.
+     * @param delay Time in milliseconds before the device starts sending.
+     */
+    private synchronized void respond(final DeviceInputStream target, final byte[] response, long delay) {
+        final long now = System.nanoTime() / 1000000;
+        final long start = Math.max(now + delay, target.lineFreeAt);
+        target.lineFreeAt = start + transmitTime(response.length);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                target.deliver(response);
+            }
+        }, target.lineFreeAt - now, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stream of bytes sent from the simulated device to the host.
+     */
+    private static class DeviceInputStream extends InputStream {
+
+        private byte[] data = new byte[1024];
+        private int start = 0;
+        private int end = 0;
+        private boolean closed = false;
+
+        /**
+         * Time at which the simulated line to the host is free again, guarded by the transport.
+         */
+        private long lineFreeAt = 0;
+
+        synchronized void deliver(byte[] bytes) {
+            if (closed) {
+                return;
+            }
+            if (end + bytes.length > data.length) {
+                // Compact, and grow when needed
+                final int size = end - start;
+                final byte[] target = size + bytes.length > data.length
+                        ? new byte[Math.max(data.length * 2, size + bytes.length)] : data;
+                System.arraycopy(data, start, target, 0, size);
+                data = target;
+                start = 0;
+                end = size;
+            }
+            System.arraycopy(bytes, 0, data, end, bytes.length);
+            end += bytes.length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (start == end && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading");
+                }
+            }
+            if (closed) {
+                return -1;
+            }
+            final int count = Math.min(len, end - start);
+            System.arraycopy(data, start, b, off, count);
+            start += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return end - start;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stream of bytes sent from the host to the simulated device. Complete commands
+     * are answered the way the real device would.
+     */
+    private class DeviceOutputStream extends OutputStream {
+
+        private final SerialManager.SerialInterface serialInterface;
+        private final DeviceInputStream target;
+        private byte[] pending = new byte[1024];
+        private int pendingSize = 0;
+
+        DeviceOutputStream(SerialManager.SerialInterface serialInterface, DeviceInputStream target) {
+            this.serialInterface = serialInterface;
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long sendTime = transmitTime(len);
+            if (sendTime > 0) {
+                try {
+                    Thread.sleep(sendTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing");
+                }
+            }
+            synchronized (this) {
+                if (pendingSize + len > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingSize + len));
+                }
+                System.arraycopy(b, off, pending, pendingSize, len);
+                pendingSize += len;
+                int consumed;
+                while ((consumed = process()) > 0) {
+                    System.arraycopy(pending, consumed, pending, 0, pendingSize - consumed);
+                    pendingSize -= consumed;
+                }
+            }
+        }
+
+        /**
+         * Process the first complete command in the pending bytes.
+         * @return Number of bytes consumed, 0 if more bytes are needed.
+         */
+        private int process() {
+            if (pendingSize == 0) {
+                return 0;
+            }
+            if (serialInterface == SerialManager.SerialInterface.NFC) {
+                if (pendingSize < CMD_GET_ID.length) {
+                    return 0;
+                }
+                if (startsWith(CMD_GET_ID)) {
+                    commandsReceived.incrementAndGet();
+                    final byte[] id = cardId;
+                    respond(target, id != null ? id : RESPONSE_NO_CARD, latency);
+                    return CMD_GET_ID.length;
+                }
+                // Unknown command, skip a byte to resynchronise
+                return 1;
+            }
+
+            if (!startsWith(PRINTER_HEADER)) {
+                return pendingSize >= PRINTER_HEADER.length ? 1 : 0;
+            }
+            final int headerLength = PRINTER_HEADER.length + 2;
+            if (pendingSize < headerLength) {
+                return 0;
+            }
+            final int length = ((pending[PRINTER_HEADER.length] & 0xff) << 8) | (pending[PRINTER_HEADER.length + 1] & 0xff);
+            final int frameLength = headerLength + length + 1;
+            if (pendingSize < frameLength) {
+                return 0;
+            }
+            commandsReceived.incrementAndGet();
+            if (length == PRINTER_STATUS_REQUEST.length + 1
+                    && pending[headerLength] == PRINTER_STATUS_REQUEST[0]
+                    && pending[headerLength + 1] == PRINTER_STATUS_REQUEST[1]) {
+                respond(target, new byte[]{ PRINTER_STATUS_ONLINE }, latency);
+            }
+            // The printer reports its status once it received the end of a line
+            else if (length > 0 && pending[headerLength + length - 1] == '\n') {
+                respond(target, new byte[]{ 0x02 }, latency);
+                respond(target, new byte[]{ printerStatus }, printingTime);
+            }
+            return frameLength;
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            if (pendingSize < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (pending[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
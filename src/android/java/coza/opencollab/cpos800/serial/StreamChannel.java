@@ -0,0 +1,118 @@
+package coza.opencollab.cpos800.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Channel over the streams of a transport that has no native channel, such as the
+ * simulated transport.
+ *
+ * Unlike {@link java.nio.channels.Channels#newChannel(InputStream)} the channel is not
+ * interruptible, so interrupting the read thread does not close the streams under the
+ * transport.
+ */
+public class StreamChannel implements ByteChannel, GatheringByteChannel {
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final byte[] readArray = new byte[1024];
+    private final byte[] writeArray = new byte[1024];
+    private volatile boolean open = true;
+
+    /**
+     * @param inputStream Stream of the received bytes, null if the channel is only written.
+     * @param outputStream Stream to send bytes to, null if the channel is only read.
+     */
+    public StreamChannel(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            final int count = inputStream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (count > 0) {
+                dst.position(dst.position() + count);
+            }
+            return count;
+        }
+        synchronized (readArray) {
+            final int count = inputStream.read(readArray, 0, Math.min(dst.remaining(), readArray.length));
+            if (count > 0) {
+                dst.put(readArray, 0, count);
+            }
+            return count;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        final int length = src.remaining();
+        if (src.hasArray()) {
+            outputStream.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+        synchronized (writeArray) {
+            while (src.hasRemaining()) {
+                final int chunk = Math.min(src.remaining(), writeArray.length);
+                src.get(writeArray, 0, chunk);
+                outputStream.write(writeArray, 0, chunk);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += write(srcs[i]);
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Close the channel and its streams, closing the input stream ends a blocked read.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        try {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        } finally {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
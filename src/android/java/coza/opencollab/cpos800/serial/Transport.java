@@ -0,0 +1,50 @@
+package coza.opencollab.cpos800.serial;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Physical connections used by the {@link SerialManager}s to talk to the serial interfaces.
+ * Every serial interface is a separate connection, several of them can be open at the
+ * same time and are used from different threads.
+ */
+public interface Transport {
+
+    /**
+     * Power the hardware behind a serial interface on or off, without affecting the other
+     * serial interfaces.
+     * @param serialInterface Serial interface to enable/disable
+     * @param enable Flag if the interface should be enabled or disable.
+     */
+    void setPower(SerialManager.SerialInterface serialInterface, boolean enable);
+
+    /**
+     * Open the connection to a serial interface.
+     * @param serialInterface Serial interface to open.
+     * @param profile Device and line settings of the serial interface.
+     * @throws IOException If the connection could not be opened.
+     */
+    void open(SerialManager.SerialInterface serialInterface, PortProfile profile) throws IOException;
+
+    /**
+     * @param serialInterface Open serial interface.
+     * @return Channel of bytes received from the serial interface, reads block until
+     *         bytes arrived.
+     */
+    ReadableByteChannel getReadChannel(SerialManager.SerialInterface serialInterface);
+
+    /**
+     * @param serialInterface Open serial interface.
+     * @return Channel to send bytes to the serial interface. A gathering write sends a
+     *         frame made of several buffers without assembling it first.
+     */
+    GatheringByteChannel getWriteChannel(SerialManager.SerialInterface serialInterface);
+
+    /**
+     * Close the connection to a serial interface, a blocked read on its read channel must
+     * return or throw.
+     * @param serialInterface Serial interface to close.
+     */
+    void close(SerialManager.SerialInterface serialInterface);
+}
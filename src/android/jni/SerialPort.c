@@ -18,18 +18,129 @@
 #include <unistd.h>
 #include <sys/types.h>
 #include <sys/stat.h>
+#include <sys/uio.h>
 #include <fcntl.h>
 #include <string.h>
+#include <errno.h>
+#include <poll.h>
+#include <time.h>
 #include <jni.h>
 
 #include "SerialPort.h"
 
 #include "android/log.h"
 static const char *TAG="serial_port";
+
+/* Maximum number of buffers written by a single gathering write */
+#define MAX_GATHER 16
 #define LOGI(fmt, args...) __android_log_print(ANDROID_LOG_INFO,  TAG, fmt, ##args)
 #define LOGD(fmt, args...) __android_log_print(ANDROID_LOG_DEBUG, TAG, fmt, ##args)
 #define LOGE(fmt, args...) __android_log_print(ANDROID_LOG_ERROR, TAG, fmt, ##args)
 
+static jint getIntField(JNIEnv *env, jobject thiz, const char *name)
+{
+	jclass SerialPortClass = (*env)->GetObjectClass(env, thiz);
+	jfieldID fieldID = (*env)->GetFieldID(env, SerialPortClass, name, "I");
+	return (*env)->GetIntField(env, thiz, fieldID);
+}
+
+static void setIntField(JNIEnv *env, jobject thiz, const char *name, jint value)
+{
+	jclass SerialPortClass = (*env)->GetObjectClass(env, thiz);
+	jfieldID fieldID = (*env)->GetFieldID(env, SerialPortClass, name, "I");
+	(*env)->SetIntField(env, thiz, fieldID, value);
+}
+
+static jint getDescriptor(JNIEnv *env, jobject thiz)
+{
+	jclass SerialPortClass = (*env)->GetObjectClass(env, thiz);
+	jclass FileDescriptorClass = (*env)->FindClass(env, "java/io/FileDescriptor");
+
+	jfieldID mFdID = (*env)->GetFieldID(env, SerialPortClass, "mFd", "Ljava/io/FileDescriptor;");
+	jfieldID descriptorID = (*env)->GetFieldID(env, FileDescriptorClass, "descriptor", "I");
+
+	jobject mFd = (*env)->GetObjectField(env, thiz, mFdID);
+	return (*env)->GetIntField(env, mFd, descriptorID);
+}
+
+static void throwException(JNIEnv *env, const char *className, const char *message)
+{
+	jclass exceptionClass = (*env)->FindClass(env, className);
+	if (exceptionClass != NULL) {
+		(*env)->ThrowNew(env, exceptionClass, message);
+	}
+}
+
+static long long uptimeMillis(void)
+{
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (long long) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+/*
+ * Get the address of a region of a direct buffer, throws when the buffer is not direct
+ * or the region is outside of the buffer.
+ */
+static jbyte *getDirectRegion(JNIEnv *env, jobject buffer, jint position, jint length)
+{
+	jbyte *address = (jbyte *) (*env)->GetDirectBufferAddress(env, buffer);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	if (address == NULL || capacity < 0) {
+		throwException(env, "java/lang/IllegalArgumentException", "Not a direct buffer");
+		return NULL;
+	}
+	if (position < 0 || length < 0 || (jlong) position + length > capacity) {
+		throwException(env, "java/lang/IndexOutOfBoundsException", "Region outside of the buffer");
+		return NULL;
+	}
+	return address + position;
+}
+
+/*
+ * Wait until the serial port is ready for the given events, the wakeup pipe got written
+ * to, or the timeout expired.
+ * Returns 1 when the serial port is ready, 0 on timeout, -1 when woken up or closed and
+ * -2 on an error.
+ */
+static int awaitDescriptor(int fd, int wakeupFd, short events, int timeout)
+{
+	struct pollfd fds[2];
+	const long long deadline = uptimeMillis() + timeout;
+	int remaining = timeout;
+	int result;
+
+	fds[0].fd = fd;
+	fds[0].events = events;
+	fds[1].fd = wakeupFd;
+	fds[1].events = POLLIN;
+	while (1) {
+		fds[0].revents = 0;
+		fds[1].revents = 0;
+		result = poll(fds, 2, remaining);
+		if (result >= 0 || errno != EINTR) {
+			break;
+		}
+		/* Interrupted by a signal, wait for the rest of the timeout */
+		if (timeout >= 0) {
+			remaining = (int) (deadline - uptimeMillis());
+			if (remaining < 0) {
+				remaining = 0;
+			}
+		}
+	}
+	if (result < 0) {
+		return -2;
+	}
+	if (fds[1].revents != 0 || (fds[0].revents & POLLNVAL)) {
+		return -1;
+	}
+	if (fds[0].revents & (POLLERR | POLLHUP)) {
+		return -2;
+	}
+	return result == 0 ? 0 : 1;
+}
+
 static speed_t getBaudrate(jint baudrate)
 {
 	switch(baudrate) {
@@ -163,5 +274,248 @@ JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_close
 
 	LOGD("close(fd = %d)", descriptor);
 	close(descriptor);
+
+	/* The wakeup pipe only exists when non-blocking io was enabled */
+	jint wakeupReadFd = getIntField(env, thiz, "mWakeupReadFd");
+	jint wakeupWriteFd = getIntField(env, thiz, "mWakeupWriteFd");
+	if (wakeupReadFd >= 0) {
+		close(wakeupReadFd);
+		close(wakeupWriteFd);
+		setIntField(env, thiz, "mWakeupReadFd", -1);
+		setIntField(env, thiz, "mWakeupWriteFd", -1);
+	}
+}
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    initNonBlocking
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_initNonBlocking
+  (JNIEnv *env, jobject thiz)
+{
+	jint descriptor = getDescriptor(env, thiz);
+	int wakeup[2];
+	int flags = fcntl(descriptor, F_GETFL);
+	if (flags == -1 || fcntl(descriptor, F_SETFL, flags | O_NONBLOCK) == -1) {
+		LOGE("fcntl() failed");
+		throwException(env, "java/io/IOException", strerror(errno));
+		return;
+	}
+	if (pipe(wakeup) == -1) {
+		LOGE("pipe() failed");
+		throwException(env, "java/io/IOException", strerror(errno));
+		return;
+	}
+	fcntl(wakeup[0], F_SETFL, fcntl(wakeup[0], F_GETFL) | O_NONBLOCK);
+	fcntl(wakeup[1], F_SETFL, fcntl(wakeup[1], F_GETFL) | O_NONBLOCK);
+	setIntField(env, thiz, "mWakeupReadFd", wakeup[0]);
+	setIntField(env, thiz, "mWakeupWriteFd", wakeup[1]);
+	LOGD("Non-blocking io enabled (fd = %d)", descriptor);
+}
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    configureTermios
+ * Signature: (IIZ)V
+ */
+JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_configureTermios
+  (JNIEnv *env, jobject thiz, jint vmin, jint vtime, jboolean flowControl)
+{
+	jint descriptor = getDescriptor(env, thiz);
+	struct termios cfg;
+
+	if (vmin < 0 || vmin > 255 || vtime < 0 || vtime > 255) {
+		throwException(env, "java/lang/IllegalArgumentException", "VMIN and VTIME must be between 0 and 255");
+		return;
+	}
+	if (tcgetattr(descriptor, &cfg)) {
+		LOGE("tcgetattr() failed");
+		throwException(env, "java/io/IOException", strerror(errno));
+		return;
+	}
+	cfg.c_cc[VMIN] = (cc_t) vmin;
+	cfg.c_cc[VTIME] = (cc_t) vtime;
+	if (flowControl) {
+		cfg.c_cflag |= CRTSCTS;
+	} else {
+		cfg.c_cflag &= ~CRTSCTS;
+	}
+	if (tcsetattr(descriptor, TCSANOW, &cfg)) {
+		LOGE("tcsetattr() failed");
+		throwException(env, "java/io/IOException", strerror(errno));
+		return;
+	}
+	LOGD("Serial port configured (fd = %d, VMIN = %d, VTIME = %d, flow control = %d)", descriptor, vmin, vtime, flowControl);
+}
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    readDirect
+ * Signature: (Ljava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_android_1serialport_1api_SerialPort_readDirect
+  (JNIEnv *env, jobject thiz, jobject buffer, jint position, jint length, jint timeout)
+{
+	jbyte *address = getDirectRegion(env, buffer, position, length);
+	if (address == NULL) {
+		return 0;
+	}
+	jint descriptor = getDescriptor(env, thiz);
+	jint wakeupFd = getIntField(env, thiz, "mWakeupReadFd");
+	int ready = awaitDescriptor(descriptor, wakeupFd, POLLIN, timeout);
+	if (ready <= 0 && ready != -2) {
+		return ready;
+	}
+	if (ready == -2) {
+		throwException(env, "java/io/IOException", "Serial port failed");
+		return 0;
+	}
+	ssize_t count = read(descriptor, address, length);
+	if (count < 0) {
+		if (errno == EAGAIN || errno == EINTR) {
+			return 0;
+		}
+		throwException(env, "java/io/IOException", strerror(errno));
+		return 0;
+	}
+	/* The end of the stream, the serial port went away */
+	return count == 0 ? -1 : (jint) count;
+}
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    writeDirect
+ * Signature: (Ljava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_android_1serialport_1api_SerialPort_writeDirect
+  (JNIEnv *env, jobject thiz, jobject buffer, jint position, jint length, jint timeout)
+{
+	jbyte *address = getDirectRegion(env, buffer, position, length);
+	if (address == NULL) {
+		return 0;
+	}
+	jint descriptor = getDescriptor(env, thiz);
+	jint wakeupFd = getIntField(env, thiz, "mWakeupReadFd");
+	const long long deadline = uptimeMillis() + timeout;
+	jint written = 0;
+	while (written < length) {
+		ssize_t count = write(descriptor, address + written, length - written);
+		if (count > 0) {
+			written += count;
+			continue;
+		}
+		if (count < 0 && errno != EAGAIN && errno != EINTR) {
+			throwException(env, "java/io/IOException", strerror(errno));
+			return written;
+		}
+		/* The output buffer of the tty is full, wait until it drained */
+		int remaining = timeout < 0 ? -1 : (int) (deadline - uptimeMillis());
+		if (timeout >= 0 && remaining <= 0) {
+			break;
+		}
+		int ready = awaitDescriptor(descriptor, wakeupFd, POLLOUT, remaining);
+		if (ready == -2) {
+			throwException(env, "java/io/IOException", "Serial port failed");
+			return written;
+		}
+		if (ready <= 0) {
+			break;
+		}
+	}
+	return written;
+}
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    writeGather
+ * Signature: ([Ljava/nio/ByteBuffer;[I[III)I
+ */
+JNIEXPORT jint JNICALL Java_android_1serialport_1api_SerialPort_writeGather
+  (JNIEnv *env, jobject thiz, jobjectArray buffers, jintArray positions, jintArray lengths, jint count, jint timeout)
+{
+	struct iovec iov[MAX_GATHER];
+	jint regionPositions[MAX_GATHER];
+	jint regionLengths[MAX_GATHER];
+	jint length = 0;
+	int i;
+	if (count < 0 || count > MAX_GATHER) {
+		throwException(env, "java/lang/IllegalArgumentException", "Too many buffers");
+		return 0;
+	}
+	(*env)->GetIntArrayRegion(env, positions, 0, count, regionPositions);
+	(*env)->GetIntArrayRegion(env, lengths, 0, count, regionLengths);
+	if ((*env)->ExceptionCheck(env)) {
+		return 0;
+	}
+	for (i = 0; i < count; i++) {
+		jobject buffer = (*env)->GetObjectArrayElement(env, buffers, i);
+		jbyte *address = getDirectRegion(env, buffer, regionPositions[i], regionLengths[i]);
+		(*env)->DeleteLocalRef(env, buffer);
+		if (address == NULL) {
+			return 0;
+		}
+		iov[i].iov_base = address;
+		iov[i].iov_len = regionLengths[i];
+		length += regionLengths[i];
+	}
+
+	jint descriptor = getDescriptor(env, thiz);
+	jint wakeupFd = getIntField(env, thiz, "mWakeupReadFd");
+	const long long deadline = uptimeMillis() + timeout;
+	struct iovec *pending = iov;
+	int pendingCount = count;
+	jint written = 0;
+	while (written < length) {
+		ssize_t sent = writev(descriptor, pending, pendingCount);
+		if (sent > 0) {
+			written += sent;
+			/* Skip the regions that were written completely */
+			while (pendingCount > 0 && (size_t) sent >= pending->iov_len) {
+				sent -= pending->iov_len;
+				pending++;
+				pendingCount--;
+			}
+			if (pendingCount > 0) {
+				pending->iov_base = (char *) pending->iov_base + sent;
+				pending->iov_len -= sent;
+			}
+			continue;
+		}
+		if (sent < 0 && errno != EAGAIN && errno != EINTR) {
+			throwException(env, "java/io/IOException", strerror(errno));
+			return written;
+		}
+		/* The output buffer of the tty is full, wait until it drained */
+		int remaining = timeout < 0 ? -1 : (int) (deadline - uptimeMillis());
+		if (timeout >= 0 && remaining <= 0) {
+			break;
+		}
+		int ready = awaitDescriptor(descriptor, wakeupFd, POLLOUT, remaining);
+		if (ready == -2) {
+			throwException(env, "java/io/IOException", "Serial port failed");
+			return written;
+		}
+		if (ready <= 0) {
+			break;
+		}
+	}
+	return written;
+}
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    signalWakeup
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_signalWakeup
+  (JNIEnv *env, jobject thiz)
+{
+	jint wakeupFd = getIntField(env, thiz, "mWakeupWriteFd");
+	if (wakeupFd >= 0) {
+		const char signal = 1;
+		/* A full pipe already wakes up the waiting threads */
+		write(wakeupFd, &signal, 1);
+	}
 }
 
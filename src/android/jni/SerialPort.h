@@ -23,6 +23,54 @@ JNIEXPORT jobject JNICALL Java_android_1serialport_1api_SerialPort_open
 JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_close
   (JNIEnv *, jobject);
 
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    initNonBlocking
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_initNonBlocking
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    configureTermios
+ * Signature: (IIZ)V
+ */
+JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_configureTermios
+  (JNIEnv *, jobject, jint, jint, jboolean);
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    readDirect
+ * Signature: (Ljava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_android_1serialport_1api_SerialPort_readDirect
+  (JNIEnv *, jobject, jobject, jint, jint, jint);
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    writeDirect
+ * Signature: (Ljava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_android_1serialport_1api_SerialPort_writeDirect
+  (JNIEnv *, jobject, jobject, jint, jint, jint);
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    writeGather
+ * Signature: ([Ljava/nio/ByteBuffer;[I[III)I
+ */
+JNIEXPORT jint JNICALL Java_android_1serialport_1api_SerialPort_writeGather
+  (JNIEnv *, jobject, jobjectArray, jintArray, jintArray, jint, jint);
+
+/*
+ * Class:     android_serialport_api_SerialPort
+ * Method:    signalWakeup
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_android_1serialport_1api_SerialPort_signalWakeup
+  (JNIEnv *, jobject);
+
 #ifdef __cplusplus
 }
 #endif
@@ -1,3 +1,18 @@
+/**
+  * Pass the progress of a print job to progressCallback and its completion to
+  * successCallback, both arrive on the success callback of the plugin.
+  */
+function printing(successCallback, progressCallback){
+	return function(result){
+		if (result && result.total !== undefined) {
+			progressCallback(result.sent, result.total);
+		}
+		else if (successCallback) {
+			successCallback(result);
+		}
+	};
+}
+
 module.exports = {
 	/**
 	  * Error code when there was a timeout waiting for a tag to be read.
@@ -21,7 +36,93 @@ module.exports = {
 	cancelReadTagId : function(successCallback, errorCallback){
 		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "cancelReadTagId", []);
 	},
-	printText : function(text, successCallback, errorCallback){
-		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "printText", [text]);
+	/**
+	  * Scan for cards continuously, successCallback is called with the serial of every card
+	  * presented. The same card is only reported again once it was gone for debounceTime
+	  * milliseconds. errorCallback is called once scanning stopped.
+	  */
+	startScan : function(pollInterval, debounceTime, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "startScan", [pollInterval, debounceTime]);
+	},
+	stopScan : function(successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "stopScan", []);
+	},
+	/**
+	  * Print text. The optional progressCallback is called with the number of bytes sent to
+	  * the printer so far and the total number of bytes, this applies to all print calls
+	  * that take a progressCallback.
+	  */
+	printText : function(text, successCallback, errorCallback, progressCallback){
+		cordova.exec(printing(successCallback, progressCallback), errorCallback, "CPOS800Plugin", "printText", [text, !!progressCallback]);
+	},
+	/**
+	  * Send printer instructions (ESC/POS) as they are, data is an ArrayBuffer or a typed
+	  * array. A new line is added when the data does not end with one.
+	  */
+	printRaw : function(data, successCallback, errorCallback, progressCallback){
+		// Typed arrays are sent as the bytes they view
+		if (ArrayBuffer.isView(data)) {
+			data = data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+		}
+		cordova.exec(printing(successCallback, progressCallback), errorCallback, "CPOS800Plugin", "printRaw", [data, !!progressCallback]);
+	},
+	/**
+	  * Print an image, given as a base64 string or data URL of a PNG or JPEG file. The image
+	  * is scaled down to the width of the print head (384 dots).
+	  */
+	printImage : function(image, successCallback, errorCallback, progressCallback){
+		cordova.exec(printing(successCallback, progressCallback), errorCallback, "CPOS800Plugin", "printImage", [image, !!progressCallback]);
+	},
+	/**
+	  * Print a barcode with its text below it, type is one of "CODE128" (default), "CODE39"
+	  * or "EAN13".
+	  */
+	printBarcode : function(text, type, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "printBarcode", [text, type]);
+	},
+	/**
+	  * Print a QR code, size is the size in dots of the squares of the code (1 to 16).
+	  */
+	printQrCode : function(text, size, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "printQrCode", [text, size]);
+	},
+	/**
+	  * Compile a receipt layout once, to print receipts with it using printTemplate. The
+	  * layout is an array of lines like {text: "Total {{total}}", align: "center", bold: true,
+	  * size: 2, feed: 1}, or {columns: [{text: "{{item}}", width: 24}, {text: "{{price}}",
+	  * width: 8, align: "right"}]}. successCallback receives the names of the fields.
+	  */
+	compileTemplate : function(id, layout, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "compileTemplate", [id, layout]);
+	},
+	/**
+	  * Print a receipt from a compiled template, values holds the value of every field.
+	  */
+	printTemplate : function(id, values, successCallback, errorCallback, progressCallback){
+		cordova.exec(printing(successCallback, progressCallback), errorCallback, "CPOS800Plugin", "printTemplate", [id, values, !!progressCallback]);
+	},
+	/**
+	  * Set how print jobs are paced. Jobs are sent in frames of at most chunkSize bytes
+	  * (1 to 1000), and at most window bytes are sent ahead of what the printer printed.
+	  * A window of 0 sends the jobs without waiting for the printer.
+	  */
+	setFlowControl : function(chunkSize, window, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "setFlowControl", [chunkSize, window]);
+	},
+	/**
+	  * Get the metrics of the device: successCallback receives {period, counters, histograms},
+	  * with the latency histograms summarised as {count, min, mean, p50, p90, p99, p999, max}
+	  * in milliseconds and period the milliseconds they cover. When reset is true the metrics
+	  * start over after this call.
+	  */
+	getMetrics : function(reset, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "getMetrics", [!!reset]);
+	},
+	/**
+	  * Keep the serial port open between operations, until it was idle for idleTimeout
+	  * milliseconds. An idleTimeout of 0 closes the serial port after every operation.
+	  */
+	setKeepAlive : function(idleTimeout, successCallback, errorCallback){
+		cordova.exec(successCallback, errorCallback, "CPOS800Plugin", "setKeepAlive", [idleTimeout]);
 	}
 };